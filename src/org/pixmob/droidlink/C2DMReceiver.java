@@ -31,6 +31,7 @@ import org.pixmob.droidlink.feature.Features;
 import org.pixmob.droidlink.feature.SharedPreferencesSaverFeature;
 import org.pixmob.droidlink.provider.EventsContract;
 import org.pixmob.droidlink.service.DeviceInitService;
+import org.pixmob.droidlink.sync.SyncScheduler;
 
 import android.content.Context;
 import android.content.Intent;
@@ -100,7 +101,7 @@ public class C2DMReceiver extends C2DMBaseReceiver {
             // When a push notification is received, we perform a FULL
             // synchronization: local events are uploaded/deleted, and remote
             // events are synchronized.
-            EventsContract.sync(this, EventsContract.FULL_SYNC, syncToken);
+            SyncScheduler.getInstance().schedule(this, EventsContract.FULL_SYNC, syncToken);
         } else {
             Log.w(TAG, "Unsupported C2DM message: " + intent);
         }
@@ -39,6 +39,12 @@ public final class Constants {
      */
     public static final boolean DEVELOPER_MODE = true;
     
+    /**
+     * Set to <code>true</code> to compress large request bodies with gzip. The
+     * remote server must support gzip encoded requests.
+     */
+    public static final boolean COMPRESS_REQUESTS = false;
+    
     /**
      * Use this tag for every logging statements.
      */
@@ -54,6 +60,8 @@ public final class Constants {
     public static final String SP_KEY_EVENT_LIST_VISIBLE = "eventListVisible";
     public static final String SP_KEY_UNREAD_EVENT_COUNT = "unreadEventCount";
     public static final String SP_KEY_EVENT_MAX_AGE = "eventMaxAge";
+    public static final String SP_KEY_UPLOAD_BATCH_SIZE = "uploadBatchSize";
+    public static final String SP_KEY_UPLOAD_CONCURRENCY = "uploadConcurrency";
     
     public static final String C2DM_SENDER_ID = "pixmobstudio@gmail.com";
     public static final String C2DM_MESSAGE_EXTRA = "message";
@@ -83,6 +91,22 @@ public final class Constants {
      */
     public static final long MAX_SYNC_AGE = 1000 * 60 * 30;
     
+    /**
+     * Synchronization requests received within this delay (in milliseconds)
+     * are merged into a single synchronization.
+     */
+    public static final long SYNC_DEBOUNCE_DELAY = 1000 * 2;
+    
+    /**
+     * Default number of events sent in a single upload request.
+     */
+    public static final int DEFAULT_UPLOAD_BATCH_SIZE = 25;
+    
+    /**
+     * Default number of upload requests sent at the same time.
+     */
+    public static final int DEFAULT_UPLOAD_CONCURRENCY = 4;
+    
     private Constants() {
     }
 }
@@ -43,6 +43,24 @@ public final class Features {
             FEATURES.put(SharedPreferencesSaverFeature.class,
                 new LegacySharedPreferencesSaverFeature());
         }
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            FEATURES.put(JsonStreamFeature.class, new HoneycombJsonStreamFeature());
+        } else {
+            FEATURES.put(JsonStreamFeature.class, new LegacyJsonStreamFeature());
+        }
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            FEATURES.put(WriteAheadLoggingFeature.class, new HoneycombWriteAheadLoggingFeature());
+        } else {
+            FEATURES.put(WriteAheadLoggingFeature.class, new LegacyWriteAheadLoggingFeature());
+        }
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            FEATURES.put(SQLiteStatementFeature.class, new HoneycombSQLiteStatementFeature());
+        } else {
+            FEATURES.put(SQLiteStatementFeature.class, new LegacySQLiteStatementFeature());
+        }
     }
     
     private Features() {
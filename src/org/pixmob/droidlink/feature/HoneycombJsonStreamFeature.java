@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.feature;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.pixmob.droidlink.net.JsonStreamHandler;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * Honeycomb {@link JsonStreamFeature} implementation: JSON content is decoded
+ * with a pull parser, one array item at a time.
+ * @author Pixmob
+ */
+class HoneycombJsonStreamFeature implements JsonStreamFeature {
+    @Override
+    public void read(InputStream input, String charset, JsonStreamHandler handler)
+            throws IOException, JSONException {
+        final JsonReader reader = new JsonReader(new InputStreamReader(input, charset));
+        try {
+            final JsonToken token;
+            try {
+                token = reader.peek();
+            } catch (EOFException e) {
+                // Empty content.
+                return;
+            }
+            
+            if (JsonToken.BEGIN_ARRAY.equals(token)) {
+                readArray(reader, null, handler);
+            } else if (JsonToken.BEGIN_OBJECT.equals(token)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    final String name = reader.nextName();
+                    if (JsonToken.BEGIN_ARRAY.equals(reader.peek())) {
+                        readArray(reader, name, handler);
+                    } else {
+                        handler.onProperty(name, readValue(reader));
+                    }
+                }
+                reader.endObject();
+            } else {
+                throw new JSONException("Unexpected JSON token: " + token);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    private static void readArray(JsonReader reader, String name, JsonStreamHandler handler)
+            throws IOException, JSONException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            handler.onArrayItem(name, readValue(reader));
+        }
+        reader.endArray();
+    }
+    
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        final JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                final JSONObject obj = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    obj.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return obj;
+            case BEGIN_ARRAY:
+                final JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                final String number = reader.nextString();
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    return Double.valueOf(number);
+                }
+            case BOOLEAN:
+                return Boolean.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected JSON token: " + token);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.feature;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.json.JSONException;
+import org.pixmob.droidlink.net.JsonStreamHandler;
+
+/**
+ * Compatibility interface for reading JSON content from a stream.
+ * @author Pixmob
+ */
+public interface JsonStreamFeature {
+    /**
+     * Read JSON content from a stream, and send decoded values to a handler.
+     * Nothing is sent to the handler if the stream is empty.
+     */
+    void read(InputStream input, String charset, JsonStreamHandler handler) throws IOException,
+            JSONException;
+}
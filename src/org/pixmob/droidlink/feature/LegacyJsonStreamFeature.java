@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.feature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.pixmob.droidlink.net.JsonStreamHandler;
+
+/**
+ * Legacy {@link JsonStreamFeature} implementation: there is no JSON pull parser
+ * before Honeycomb, so the whole content is decoded before values are sent to
+ * the handler.
+ * @author Pixmob
+ */
+class LegacyJsonStreamFeature implements JsonStreamFeature {
+    @Override
+    public void read(InputStream input, String charset, JsonStreamHandler handler)
+            throws IOException, JSONException {
+        final StringBuilder buf = new StringBuilder(1024);
+        final Reader reader = new InputStreamReader(input, charset);
+        try {
+            final char[] chars = new char[1024];
+            for (int len; (len = reader.read(chars)) != -1;) {
+                buf.append(chars, 0, len);
+            }
+        } finally {
+            reader.close();
+        }
+        
+        final String content = buf.toString().trim();
+        if (content.length() == 0) {
+            return;
+        }
+        
+        final Object value = new JSONTokener(content).nextValue();
+        if (value instanceof JSONArray) {
+            readArray((JSONArray) value, null, handler);
+        } else if (value instanceof JSONObject) {
+            final JSONObject obj = (JSONObject) value;
+            for (final Iterator<?> i = obj.keys(); i.hasNext();) {
+                final String name = (String) i.next();
+                final Object property = obj.get(name);
+                if (property instanceof JSONArray) {
+                    readArray((JSONArray) property, name, handler);
+                } else {
+                    handler.onProperty(name, property);
+                }
+            }
+        } else {
+            throw new JSONException("Unexpected JSON value: " + value);
+        }
+    }
+    
+    private static void readArray(JSONArray array, String name, JsonStreamHandler handler)
+            throws IOException, JSONException {
+        final int len = array.length();
+        for (int i = 0; i < len; ++i) {
+            handler.onArrayItem(name, array.get(i));
+        }
+    }
+}
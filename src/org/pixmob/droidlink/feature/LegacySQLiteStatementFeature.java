@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.feature;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Legacy {@link SQLiteStatementFeature} implementation: the number of
+ * affected rows is read with the SQL function <code>changes()</code>, in the
+ * same transaction as the statement.
+ * @author Pixmob
+ */
+class LegacySQLiteStatementFeature implements SQLiteStatementFeature {
+    @Override
+    public int executeUpdateDelete(SQLiteDatabase db, SQLiteStatement statement) {
+        db.beginTransaction();
+        try {
+            statement.execute();
+            final int count = (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.feature;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Compatibility interface for executing a compiled UPDATE or DELETE
+ * statement.
+ * @author Pixmob
+ */
+public interface SQLiteStatementFeature {
+    /**
+     * Execute an UPDATE or DELETE statement.
+     * @return the number of rows affected by the statement
+     */
+    int executeUpdateDelete(SQLiteDatabase db, SQLiteStatement statement);
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.feature;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Compatibility interface for enabling write-ahead logging on a database.
+ * With write-ahead logging, queries are not blocked by a transaction which is
+ * running in another thread.
+ * @author Pixmob
+ */
+public interface WriteAheadLoggingFeature {
+    /**
+     * Enable write-ahead logging on a database, if this feature is supported.
+     * @return <code>true</code> if write-ahead logging is enabled
+     */
+    boolean enable(SQLiteDatabase db);
+}
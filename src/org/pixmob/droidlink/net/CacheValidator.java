@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+/**
+ * Cache validators for a remote resource, as sent by the server with the
+ * headers <code>ETag</code> and <code>Last-Modified</code>. These values are
+ * sent back with a conditional request, in order to download the resource
+ * only if it was modified.
+ * @author Pixmob
+ */
+public class CacheValidator {
+    private final String eTag;
+    private final String lastModified;
+    
+    public CacheValidator(final String eTag, final String lastModified) {
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+    
+    public String getETag() {
+        return eTag;
+    }
+    
+    public String getLastModified() {
+        return lastModified;
+    }
+    
+    @Override
+    public String toString() {
+        return "eTag=" + eTag + ", lastModified=" + lastModified;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link InputStream} implementation counting bytes read from a response.
+ * @author Pixmob
+ */
+class CountingInputStream extends FilterInputStream {
+    private final TransferStats stats;
+    private final boolean wire;
+    
+    /**
+     * Create a new instance.
+     * @param wire <code>true</code> if bytes are read from the connection,
+     *            <code>false</code> if bytes are decoded content
+     */
+    public CountingInputStream(final InputStream input, final TransferStats stats,
+            final boolean wire) {
+        super(input);
+        this.stats = stats;
+        this.wire = wire;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b != -1) {
+            count(1);
+        }
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        final int len = super.read(buffer, offset, count);
+        if (len > 0) {
+            count(len);
+        }
+        return len;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        final long len = super.skip(n);
+        if (len > 0) {
+            count(len);
+        }
+        return len;
+    }
+    
+    private void count(long len) {
+        if (wire) {
+            stats.responseWireBytes += len;
+        } else {
+            stats.responseRawBytes += len;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link OutputStream} implementation counting bytes written to a request.
+ * @author Pixmob
+ */
+class CountingOutputStream extends FilterOutputStream {
+    private final TransferStats stats;
+    private final boolean wire;
+    
+    /**
+     * Create a new instance.
+     * @param wire <code>true</code> if bytes are written to the connection,
+     *            <code>false</code> if bytes are content to be encoded
+     */
+    public CountingOutputStream(final OutputStream output, final TransferStats stats,
+            final boolean wire) {
+        super(output);
+        this.stats = stats;
+        this.wire = wire;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count(1);
+    }
+    
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        // Do not use the FilterOutputStream implementation, which writes
+        // bytes one at a time.
+        out.write(buffer, offset, count);
+        count(count);
+    }
+    
+    private void count(long len) {
+        if (wire) {
+            stats.requestWireBytes += len;
+        } else {
+            stats.requestRawBytes += len;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Request body wrapper counting transferred bytes. If compression is enabled,
+ * the content is encoded with gzip while it is being sent.
+ * @author Pixmob
+ */
+class GzipRequestEntity extends HttpEntityWrapper {
+    private final TransferStats stats;
+    private final boolean compressed;
+    
+    public GzipRequestEntity(final HttpEntity entity, final TransferStats stats,
+            final boolean compressed) {
+        super(entity);
+        this.stats = stats;
+        this.compressed = compressed;
+    }
+    
+    @Override
+    public Header getContentEncoding() {
+        return compressed ? new BasicHeader("Content-Encoding", "gzip") : super
+                .getContentEncoding();
+    }
+    
+    @Override
+    public long getContentLength() {
+        return compressed ? -1 : super.getContentLength();
+    }
+    
+    @Override
+    public boolean isChunked() {
+        return compressed || super.isChunked();
+    }
+    
+    /**
+     * Get the content, encoded as it is sent. When compression is enabled,
+     * the compressed content is kept in memory: requests are sent with
+     * {@link #writeTo(OutputStream)}, which does not buffer the content.
+     * Transfer counters are not updated.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        if (!compressed) {
+            return super.getContent();
+        }
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        final GZIPOutputStream gzipOutput = new GZIPOutputStream(buffer, 4096);
+        wrappedEntity.writeTo(gzipOutput);
+        gzipOutput.finish();
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+    
+    @Override
+    public void writeTo(OutputStream output) throws IOException {
+        // Counters are reset if the request is sent again.
+        stats.requestRawBytes = 0;
+        stats.requestWireBytes = 0;
+        
+        final OutputStream wireOutput = new CountingOutputStream(output, stats, true);
+        if (compressed) {
+            final GZIPOutputStream gzipOutput = new GZIPOutputStream(wireOutput, 4096);
+            wrappedEntity.writeTo(new CountingOutputStream(gzipOutput, stats, false));
+            gzipOutput.finish();
+        } else {
+            wrappedEntity.writeTo(new CountingOutputStream(wireOutput, stats, false));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Response body wrapper counting transferred bytes. If the response is encoded
+ * with gzip, the content is decoded while it is being read.
+ * @author Pixmob
+ */
+class GzipResponseEntity extends HttpEntityWrapper {
+    private final TransferStats stats;
+    private final boolean compressed;
+    private InputStream content;
+    
+    public GzipResponseEntity(final HttpEntity entity, final TransferStats stats) {
+        super(entity);
+        this.stats = stats;
+        
+        // An empty response is never decoded.
+        final Header contentEncoding = entity.getContentEncoding();
+        compressed = entity.getContentLength() != 0 && contentEncoding != null
+                && "gzip".equalsIgnoreCase(contentEncoding.getValue());
+    }
+    
+    @Override
+    public InputStream getContent() throws IOException {
+        if (content == null) {
+            final InputStream wireInput = new CountingInputStream(wrappedEntity.getContent(),
+                    stats, true);
+            content = new CountingInputStream(compressed ? new GZIPInputStream(wireInput)
+                    : wireInput, stats, false);
+        }
+        return content;
+    }
+    
+    @Override
+    public Header getContentEncoding() {
+        // The content is decoded.
+        return compressed ? null : super.getContentEncoding();
+    }
+    
+    @Override
+    public long getContentLength() {
+        return compressed ? -1 : super.getContentLength();
+    }
+    
+    @Override
+    public void consumeContent() throws IOException {
+        if (content != null) {
+            content.close();
+        }
+        super.consumeContent();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Request body where JSON content is written directly to the connection, using
+ * chunked transfer encoding. The content is never entirely kept in memory.
+ * @author Pixmob
+ */
+public abstract class JsonStreamEntity extends AbstractHttpEntity {
+    private static final String CHARSET = "UTF-8";
+    
+    public JsonStreamEntity() {
+        setContentType("application/json; charset=" + CHARSET);
+        setChunked(true);
+    }
+    
+    /**
+     * Write JSON content. This method may be called more than once if the
+     * request is sent again: the same content must be written.
+     */
+    protected abstract void writeJson(Writer writer) throws IOException;
+    
+    @Override
+    public void writeTo(OutputStream output) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(output, CHARSET), 8192);
+        writeJson(writer);
+        writer.flush();
+    }
+    
+    /**
+     * Get the JSON content. The content is written to memory first: requests
+     * are sent with {@link #writeTo(OutputStream)}, which does not buffer the
+     * content.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        writeTo(buffer);
+        return new ByteArrayInputStream(buffer.toByteArray());
+    }
+    
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+    
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+    
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
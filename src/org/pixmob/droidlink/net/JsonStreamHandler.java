@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+
+/**
+ * Handler for JSON results which are decoded while the response is being
+ * read. Array items are sent one at a time, so that large results are never
+ * entirely kept in memory.
+ * @author Pixmob
+ */
+public interface JsonStreamHandler {
+    /**
+     * Handle an array item. If the result is an array, <code>name</code> is
+     * <code>null</code>. If the result is an object, this method is called for
+     * every item of its array properties.
+     * @param name array name, or <code>null</code> for the result array
+     * @param item a {@link org.json.JSONObject}, a {@link org.json.JSONArray},
+     *            a {@link String}, a {@link Number}, a {@link Boolean} or
+     *            {@link org.json.JSONObject#NULL}
+     */
+    void onArrayItem(String name, Object item) throws IOException, JSONException;
+    
+    /**
+     * Handle a property of the result object, which is not an array.
+     */
+    void onProperty(String name, Object value) throws IOException, JSONException;
+}
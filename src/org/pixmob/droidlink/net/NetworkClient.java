@@ -16,6 +16,7 @@
 package org.pixmob.droidlink.net;
 
 import static org.pixmob.droidlink.Constants.APPLICATION_NAME;
+import static org.pixmob.droidlink.Constants.COMPRESS_REQUESTS;
 import static org.pixmob.droidlink.Constants.DEVELOPER_MODE;
 import static org.pixmob.droidlink.Constants.REMOTE_API_VERSION;
 import static org.pixmob.droidlink.Constants.SERVER_HOST;
@@ -27,6 +28,7 @@ import static org.pixmob.droidlink.Constants.TAG;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -44,10 +46,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.pixmob.appengine.client.AppEngineAuthenticationException;
 import org.pixmob.appengine.client.AppEngineClient;
+import org.pixmob.droidlink.feature.Features;
+import org.pixmob.droidlink.feature.JsonStreamFeature;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
@@ -59,20 +64,52 @@ import android.util.Log;
  */
 public class NetworkClient {
     private static final String CHARSET = "UTF-8";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String PARAM_PAGE_SIZE = "limit";
+    private static final String PARAM_PAGE_TOKEN = "page";
+    /**
+     * Request bodies larger than this size (in bytes) are compressed, if
+     * {@link org.pixmob.droidlink.Constants#COMPRESS_REQUESTS} is set.
+     */
+    private static final int COMPRESSION_THRESHOLD = 1024;
+    private static final TransferStats TOTAL_TRANSFER_STATS = new TransferStats();
     private static String applicationVersion;
     
+    private final NetworkClientPool.Session session;
     private final AppEngineClient client;
     private final String deviceId;
     private final String account;
+    private TransferStats lastTransferStats;
+    private boolean closed;
     
-    private NetworkClient(final AppEngineClient client, final String accountName,
-            final String deviceId) {
-        this.client = client;
-        this.account = accountName;
+    private NetworkClient(final NetworkClientPool.Session session, final String deviceId) {
+        this.session = session;
+        this.client = session.client;
+        this.account = session.account;
         this.deviceId = deviceId;
     }
     
+    /**
+     * Get a network client for the current account. The client is borrowed
+     * from a shared pool of authenticated sessions: {@link #close()} must be
+     * called when the client is no longer used, in order to release it.
+     * @return a network client, or <code>null</code> if no account is set or
+     *         if no client is available
+     */
     public static NetworkClient newInstance(Context context) {
+        return newInstance(context, true);
+    }
+    
+    /**
+     * Get a network client for the current account.
+     * @param wait set to <code>false</code> to return <code>null</code> at
+     *            once if every client is borrowed
+     * @see #newInstance(Context)
+     */
+    public static NetworkClient newInstance(Context context, boolean wait) {
         final SharedPreferences prefs = context.getSharedPreferences(SHARED_PREFERENCES_FILE,
             Context.MODE_PRIVATE);
         
@@ -90,11 +127,13 @@ public class NetworkClient {
             return null;
         }
         
-        final AppEngineClient gaeClient = new AppEngineClient(context, SERVER_HOST);
-        gaeClient.setAccount(account);
-        gaeClient.setHttpUserAgent(generateUserAgent(context));
+        final NetworkClientPool.Session session = NetworkClientPool.getInstance().borrow(context,
+            account, generateUserAgent(context), wait);
+        if (session == null) {
+            return null;
+        }
         
-        return new NetworkClient(gaeClient, account, deviceId);
+        return new NetworkClient(session, deviceId);
     }
     
     private static final String generateUserAgent(Context context) {
@@ -106,9 +145,11 @@ public class NetworkClient {
                 applicationVersion = "0.0.0";
             }
         }
+        // App Engine only sends compressed responses if the user agent
+        // contains "gzip".
         return APPLICATION_NAME + "/" + applicationVersion + " (" + Build.MANUFACTURER + " "
                 + Build.MODEL + " with Android " + Build.VERSION.RELEASE + "/"
-                + Build.VERSION.SDK_INT + ")";
+                + Build.VERSION.SDK_INT + "; gzip)";
     }
     
     public String getDeviceId() {
@@ -119,6 +160,27 @@ public class NetworkClient {
         return account;
     }
     
+    /**
+     * Get byte counters for the last request sent by this client.
+     */
+    public TransferStats getLastTransferStats() {
+        return lastTransferStats;
+    }
+    
+    /**
+     * Get byte counters for every request sent since the application started.
+     */
+    public static TransferStats getTotalTransferStats() {
+        return TOTAL_TRANSFER_STATS;
+    }
+    
+    /**
+     * Get session counters since the application started.
+     */
+    public static SessionStats getSessionStats() {
+        return NetworkClientPool.getInstance().getSessionStats();
+    }
+    
     public JSONObject get(String serviceUri) throws IOException, AppEngineAuthenticationException {
         return (JSONObject) execute(HttpMethod.GET, serviceUri, null);
     }
@@ -130,11 +192,19 @@ public class NetworkClient {
     
     public JSONObject put(String serviceUri, JSONObject data) throws IOException,
             AppEngineAuthenticationException {
-        return (JSONObject) execute(HttpMethod.PUT, serviceUri, data);
+        return (JSONObject) execute(HttpMethod.PUT, serviceUri, toEntity(data));
     }
     
     public JSONObject post(String serviceUri, JSONObject data) throws IOException,
             AppEngineAuthenticationException {
+        return (JSONObject) execute(HttpMethod.POST, serviceUri, toEntity(data));
+    }
+    
+    /**
+     * Send a POST request with a streamed JSON body.
+     */
+    public JSONObject post(String serviceUri, JsonStreamEntity data) throws IOException,
+            AppEngineAuthenticationException {
         return (JSONObject) execute(HttpMethod.POST, serviceUri, data);
     }
     
@@ -142,14 +212,134 @@ public class NetworkClient {
         execute(HttpMethod.DELETE, serviceUri, null);
     }
     
+    /**
+     * Send a GET request, and decode the JSON result while the response is
+     * being read: the result is never entirely kept in memory.
+     */
+    public void get(String serviceUri, JsonStreamHandler handler) throws IOException,
+            AppEngineAuthenticationException {
+        final String requestUri = createServiceUri(serviceUri);
+        final HttpUriRequest request = createJsonRequest(HttpMethod.GET, requestUri, null);
+        final HttpResponse resp = executeJsonRequest(request, requestUri);
+        readJson(request, requestUri, resp, handler);
+    }
+    
+    /**
+     * Send a conditional GET request, and decode the JSON result while the
+     * response is being read. The handler is not called if the resource was
+     * not modified since the validator was received.
+     * @param validator validator from a previous response (may be
+     *            <code>null</code>)
+     * @return the validator for this response, or <code>null</code> if the
+     *         resource was not modified
+     */
+    public CacheValidator get(String serviceUri, CacheValidator validator,
+            JsonStreamHandler handler) throws IOException, AppEngineAuthenticationException {
+        final String requestUri = createServiceUri(serviceUri);
+        final HttpUriRequest request = createJsonRequest(HttpMethod.GET, requestUri, null);
+        if (validator != null) {
+            if (validator.getETag() != null) {
+                request.setHeader(HEADER_IF_NONE_MATCH, validator.getETag());
+            }
+            if (validator.getLastModified() != null) {
+                request.setHeader(HEADER_IF_MODIFIED_SINCE, validator.getLastModified());
+            }
+        }
+        
+        final HttpResponse resp;
+        try {
+            resp = executeJsonRequest(request, requestUri);
+        } catch (NetworkClientException e) {
+            if (isStatusNotModified(e.getStatusCode())) {
+                if (DEVELOPER_MODE) {
+                    Log.d(TAG, "Resource not modified: " + requestUri);
+                }
+                return null;
+            }
+            throw e;
+        }
+        
+        final CacheValidator newValidator = new CacheValidator(getHeader(resp, HEADER_ETAG),
+                getHeader(resp, HEADER_LAST_MODIFIED));
+        readJson(request, requestUri, resp, handler);
+        return newValidator;
+    }
+    
+    /**
+     * Append pagination parameters to a service Uri. The remote server sends
+     * at most <code>pageSize</code> items, and a continuation token with the
+     * property <code>next</code> if there are more items.
+     * @param pageToken continuation token from the previous page, or
+     *            <code>null</code> for the first page
+     */
+    public static String toPageUri(String serviceUri, int pageSize, String pageToken) {
+        final StringBuilder buf = new StringBuilder(serviceUri);
+        buf.append(serviceUri.indexOf('?') == -1 ? '?' : '&').append(PARAM_PAGE_SIZE).append('=')
+                .append(pageSize);
+        if (pageToken != null) {
+            buf.append('&').append(PARAM_PAGE_TOKEN).append('=').append(Uri.encode(pageToken));
+        }
+        return buf.toString();
+    }
+    
+    private static String getHeader(HttpResponse resp, String name) {
+        final Header header = resp.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+    
+    /**
+     * Decode a JSON result while the response is being read.
+     */
+    private void readJson(HttpUriRequest request, String requestUri, HttpResponse resp,
+            JsonStreamHandler handler) throws IOException {
+        final HttpEntity entity = resp.getEntity();
+        if (entity == null) {
+            if (DEVELOPER_MODE) {
+                Log.d(TAG, "No JSON result for request " + requestUri);
+            }
+            return;
+        }
+        
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Reading JSON result for request " + requestUri);
+        }
+        boolean done = false;
+        try {
+            Features.getFeature(JsonStreamFeature.class).read(entity.getContent(), CHARSET,
+                handler);
+            done = true;
+            onTransferDone(requestUri);
+        } catch (JSONException e) {
+            throw new NetworkClientException(requestUri, "Invalid JSON result", e);
+        } finally {
+            if (done) {
+                try {
+                    entity.consumeContent();
+                } catch (IOException ignore) {
+                }
+            } else {
+                // Do not read the remaining content.
+                closeResources(request, resp);
+            }
+        }
+    }
+    
+    /**
+     * Release this client. Connections are kept open in a shared pool for the
+     * next requests.
+     */
     public void close() {
-        client.close();
+        if (!closed) {
+            closed = true;
+            NetworkClientPool.getInstance().release(session);
+        }
     }
     
     public HttpResponse execute(HttpUriRequest request) throws IOException,
             AppEngineAuthenticationException {
         HttpResponse resp = null;
         try {
+            final long start = System.currentTimeMillis();
             resp = client.execute(request);
             
             final int statusCode = resp.getStatusLine().getStatusCode();
@@ -158,9 +348,18 @@ public class NetworkClient {
                         + statusCode);
             }
             
+            if (isStatusUnauthorized(statusCode)) {
+                invalidateSession();
+            } else if (!session.authenticated) {
+                // The first request of a session includes authentication.
+                session.authenticated = true;
+                getSessionStats().onMiss(System.currentTimeMillis() - start);
+            }
+            
             return resp;
         } catch (AppEngineAuthenticationException e) {
             closeResources(request, resp);
+            invalidateSession();
             throw e;
         } catch (IOException e) {
             closeResources(request, resp);
@@ -168,37 +367,11 @@ public class NetworkClient {
         }
     }
     
-    private Object execute(HttpMethod httpMethod, String serviceUri, JSONObject data)
+    private Object execute(HttpMethod httpMethod, String serviceUri, HttpEntity data)
             throws IOException, AppEngineAuthenticationException {
         final String requestUri = createServiceUri(serviceUri);
-        final HttpUriRequest request = httpMethod.createRequest(requestUri, data);
-        prepareJsonRequest(request);
-        
-        if (DEVELOPER_MODE) {
-            Log.i(TAG, "Sending request to remote server: " + requestUri);
-            if (request instanceof HttpEntityEnclosingRequestBase) {
-                final HttpEntityEnclosingRequestBase r = (HttpEntityEnclosingRequestBase) request;
-                final HttpEntity body = r.getEntity();
-                if (body != null) {
-                    final String strBody = EntityUtils.toString(body, CHARSET);
-                    Log.d(TAG, "Body for request " + requestUri + ": " + strBody);
-                }
-            }
-        }
-        
-        final HttpResponse resp = execute(request);
-        final int statusCode = resp.getStatusLine().getStatusCode();
-        if (isStatusNotFound(statusCode)) {
-            throw new NetworkClientException(requestUri, statusCode, "Resource not found");
-        }
-        if (isStatusError(statusCode)) {
-            throw new NetworkClientException(requestUri, statusCode,
-                    "Request failed on remote server");
-        }
-        if (!isStatusOK(statusCode)) {
-            throw new NetworkClientException(requestUri, statusCode, "Request failed with error "
-                    + statusCode);
-        }
+        final HttpUriRequest request = createJsonRequest(httpMethod, requestUri, data);
+        final HttpResponse resp = executeJsonRequest(request, requestUri);
         
         final HttpEntity entity = resp.getEntity();
         if (entity == null) {
@@ -209,6 +382,7 @@ public class NetworkClient {
         }
         
         final String strResp = EntityUtils.toString(entity, CHARSET);
+        onTransferDone(requestUri);
         if (TextUtils.isEmpty(strResp)) {
             if (DEVELOPER_MODE) {
                 Log.d(TAG, "Empty JSON result for request " + requestUri);
@@ -230,6 +404,95 @@ public class NetworkClient {
         }
     }
     
+    private static HttpEntity toEntity(JSONObject data) throws UnsupportedEncodingException {
+        return data != null ? new StringEntity(data.toString(), CHARSET) : null;
+    }
+    
+    private static HttpUriRequest createJsonRequest(HttpMethod httpMethod, String requestUri,
+            HttpEntity data) throws IOException {
+        final HttpUriRequest request = httpMethod.createRequest(requestUri, data);
+        prepareJsonRequest(request);
+        
+        if (DEVELOPER_MODE) {
+            Log.i(TAG, "Sending request to remote server: " + requestUri);
+            if (request instanceof HttpEntityEnclosingRequestBase) {
+                final HttpEntityEnclosingRequestBase r = (HttpEntityEnclosingRequestBase) request;
+                final HttpEntity body = r.getEntity();
+                if (body != null && body.getContentLength() >= 0) {
+                    final String strBody = EntityUtils.toString(body, CHARSET);
+                    Log.d(TAG, "Body for request " + requestUri + ": " + strBody);
+                }
+            }
+        }
+        
+        return request;
+    }
+    
+    /**
+     * Execute a JSON request, and check the response status code.
+     */
+    private HttpResponse executeJsonRequest(HttpUriRequest request, String requestUri)
+            throws IOException, AppEngineAuthenticationException {
+        final TransferStats stats = new TransferStats();
+        lastTransferStats = stats;
+        if (request instanceof HttpEntityEnclosingRequestBase) {
+            final HttpEntityEnclosingRequestBase r = (HttpEntityEnclosingRequestBase) request;
+            final HttpEntity body = r.getEntity();
+            if (body != null) {
+                // Streamed bodies have an unknown length: they are always
+                // compressed.
+                final long length = body.getContentLength();
+                final boolean compressed = COMPRESS_REQUESTS
+                        && (length < 0 || length > COMPRESSION_THRESHOLD);
+                r.setEntity(new GzipRequestEntity(body, stats, compressed));
+            }
+        }
+        
+        final HttpResponse resp = execute(request);
+        final HttpEntity entity = resp.getEntity();
+        if (entity != null) {
+            resp.setEntity(new GzipResponseEntity(entity, stats));
+        }
+        
+        final int statusCode = resp.getStatusLine().getStatusCode();
+        if (isStatusOK(statusCode)) {
+            return resp;
+        }
+        
+        closeResources(request, resp);
+        if (isStatusNotFound(statusCode)) {
+            throw new NetworkClientException(requestUri, statusCode, "Resource not found");
+        }
+        if (isStatusError(statusCode)) {
+            throw new NetworkClientException(requestUri, statusCode,
+                    "Request failed on remote server");
+        }
+        throw new NetworkClientException(requestUri, statusCode, "Request failed with error "
+                + statusCode);
+    }
+    
+    /**
+     * Discard the session used by this client: the authentication cookie was
+     * rejected by the remote server.
+     */
+    private void invalidateSession() {
+        if (!session.invalid) {
+            Log.w(TAG, "Network session rejected for " + account);
+            session.invalid = true;
+            NetworkClientPool.getInstance().invalidate(account);
+        }
+    }
+    
+    /**
+     * Update byte counters when the response was read.
+     */
+    private void onTransferDone(String requestUri) {
+        TOTAL_TRANSFER_STATS.add(lastTransferStats);
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Transfer stats for request " + requestUri + ": " + lastTransferStats);
+        }
+    }
+    
     private static void closeResources(HttpUriRequest request, HttpResponse response) {
         try {
             request.abort();
@@ -263,6 +526,22 @@ public class NetworkClient {
         return statusCode == 200 || statusCode == 204 || statusCode == 201;
     }
     
+    /**
+     * Check if the status code is an error indicating that the request was not
+     * authenticated.
+     */
+    private static boolean isStatusUnauthorized(int statusCode) {
+        return statusCode == 401;
+    }
+    
+    /**
+     * Check if the status code indicates that a resource was not modified
+     * since the last request.
+     */
+    private static boolean isStatusNotModified(int statusCode) {
+        return statusCode == 304;
+    }
+    
     /**
      * Check if the status code is an error indicating that a resource was not
      * found.
@@ -285,26 +564,26 @@ public class NetworkClient {
     private static void prepareJsonRequest(HttpRequest req) {
         req.setHeader(HTTP.CONTENT_TYPE, "application/json");
         req.addHeader("Accept", "application/json");
+        req.addHeader("Accept-Encoding", "gzip");
     }
     
     private static enum HttpMethod {
         GET, PUT, POST, DELETE;
         
-        public HttpUriRequest createRequest(String requestUri, JSONObject data)
-                throws UnsupportedEncodingException {
+        public HttpUriRequest createRequest(String requestUri, HttpEntity data) {
             switch (this) {
                 case GET:
                     return new HttpGet(requestUri);
                 case POST:
                     final HttpPost post = new HttpPost(requestUri);
                     if (data != null) {
-                        post.setEntity(new StringEntity(data.toString(), CHARSET));
+                        post.setEntity(data);
                     }
                     return post;
                 case PUT:
                     final HttpPut put = new HttpPut(requestUri);
                     if (data != null) {
-                        put.setEntity(new StringEntity(data.toString(), CHARSET));
+                        put.setEntity(data);
                     }
                     return put;
                 case DELETE:
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+import static org.pixmob.droidlink.Constants.DEVELOPER_MODE;
+import static org.pixmob.droidlink.Constants.SERVER_HOST;
+import static org.pixmob.droidlink.Constants.TAG;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pixmob.appengine.client.AppEngineClient;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Process-wide pool of authenticated sessions. A session is an
+ * {@link AppEngineClient} instance, which keeps its connections and its
+ * authentication cookie: requests sent with a borrowed session do not need a
+ * new TCP connection or a new authentication. Sessions which are not used for
+ * some time, or which are about to expire, are closed.
+ * @author Pixmob
+ */
+final class NetworkClientPool {
+    /**
+     * Maximum number of sessions, including borrowed sessions.
+     */
+    private static final int MAX_SESSIONS = 4;
+    /**
+     * Idle sessions are closed after this delay (in milliseconds).
+     */
+    private static final long IDLE_TIMEOUT = 30 * 60 * 1000;
+    /**
+     * Sessions are retired when they are older than this delay (in
+     * milliseconds), before the authentication cookie expires on the remote
+     * server.
+     */
+    private static final long SESSION_MAX_AGE = 12 * 60 * 60 * 1000;
+    /**
+     * Delay between two checks for idle sessions (in milliseconds).
+     */
+    private static final long EVICTION_INTERVAL = 60 * 1000;
+    /**
+     * Maximum time to wait for a session when every session is borrowed (in
+     * milliseconds).
+     */
+    private static final long BORROW_TIMEOUT = 30 * 1000;
+    private static final NetworkClientPool INSTANCE = new NetworkClientPool();
+    
+    private final LinkedList<Session> idleSessions = new LinkedList<Session>();
+    private final SessionStats sessionStats = new SessionStats();
+    private final ScheduledThreadPoolExecutor evictionExecutor = new ScheduledThreadPoolExecutor(
+            1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "DroidLink/NetworkClientPool");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final Runnable evictionTask = new Runnable() {
+        @Override
+        public void run() {
+            evictIdleSessions();
+        }
+    };
+    private int numSessions;
+    private boolean evictionScheduled;
+    
+    private NetworkClientPool() {
+    }
+    
+    public static NetworkClientPool getInstance() {
+        return INSTANCE;
+    }
+    
+    public SessionStats getSessionStats() {
+        return sessionStats;
+    }
+    
+    /**
+     * Borrow a session for an account. An idle session is returned if there is
+     * one, or a new session is created. If every session is borrowed, this
+     * method waits until a session is released, unless <code>wait</code> is
+     * <code>false</code>.
+     * <p>
+     * Sessions are created and closed without holding the pool lock: a slot
+     * is reserved for a new session, so that other threads can borrow and
+     * release sessions meanwhile.
+     * </p>
+     * @return a session, or <code>null</code> if no session is available
+     */
+    public Session borrow(Context context, String account, String userAgent, boolean wait) {
+        final long deadline = System.currentTimeMillis() + (wait ? BORROW_TIMEOUT : 0);
+        for (;;) {
+            final List<Session> staleSessions = new ArrayList<Session>(1);
+            Session session = null;
+            boolean reserved = false;
+            synchronized (this) {
+                // Reuse an idle session for this account.
+                final long now = System.currentTimeMillis();
+                for (final Iterator<Session> i = idleSessions.iterator(); i.hasNext();) {
+                    final Session idleSession = i.next();
+                    if (!idleSession.account.equals(account)) {
+                        continue;
+                    }
+                    i.remove();
+                    if (idleSession.isExpired(now)) {
+                        staleSessions.add(idleSession);
+                        continue;
+                    }
+                    
+                    if (idleSession.authenticated) {
+                        sessionStats.onHit();
+                    }
+                    if (DEVELOPER_MODE) {
+                        Log.d(TAG, "Reusing network session for " + account);
+                    }
+                    session = idleSession;
+                    break;
+                }
+                
+                if (session == null && staleSessions.isEmpty()) {
+                    if (numSessions < MAX_SESSIONS) {
+                        ++numSessions;
+                        reserved = true;
+                    } else if (!idleSessions.isEmpty()) {
+                        // Make room for a new session by closing an idle
+                        // session which belongs to another account.
+                        staleSessions.add(idleSessions.removeFirst());
+                    } else {
+                        final long timeout = deadline - now;
+                        if (timeout <= 0) {
+                            Log.w(TAG, "No network session available for " + account);
+                            return null;
+                        }
+                        try {
+                            wait(timeout);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                        continue;
+                    }
+                }
+            }
+            
+            // Closed sessions free their slot: a new session may be created
+            // on the next attempt.
+            closeSessions(staleSessions);
+            if (session != null) {
+                return session;
+            }
+            if (reserved) {
+                return createSession(context, account, userAgent);
+            }
+        }
+    }
+    
+    /**
+     * Create a session in a reserved slot. The slot is freed if the session
+     * cannot be created.
+     */
+    private Session createSession(Context context, String account, String userAgent) {
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Creating network session for " + account);
+        }
+        boolean created = false;
+        try {
+            final AppEngineClient client = new AppEngineClient(context.getApplicationContext(),
+                    SERVER_HOST);
+            client.setAccount(account);
+            client.setHttpUserAgent(userAgent);
+            final Session session = new Session(account, client);
+            created = true;
+            return session;
+        } finally {
+            if (!created) {
+                synchronized (this) {
+                    --numSessions;
+                    notifyAll();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Release a borrowed session. The session is kept for the next requests,
+     * unless it was invalidated.
+     */
+    public void release(Session session) {
+        if (session.invalid) {
+            if (DEVELOPER_MODE) {
+                Log.d(TAG, "Discarding invalid network session for " + session.account);
+            }
+            closeSessions(Collections.singletonList(session));
+            return;
+        }
+        
+        synchronized (this) {
+            session.releaseTime = System.currentTimeMillis();
+            idleSessions.addLast(session);
+            if (!evictionScheduled) {
+                evictionScheduled = true;
+                evictionExecutor.schedule(evictionTask, EVICTION_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+            }
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Discard every idle session for an account. This method is called when
+     * the remote server rejected a session for this account.
+     */
+    public void invalidate(String account) {
+        final List<Session> invalidSessions = new ArrayList<Session>(1);
+        synchronized (this) {
+            sessionStats.onInvalidation();
+            for (final Iterator<Session> i = idleSessions.iterator(); i.hasNext();) {
+                final Session session = i.next();
+                if (session.account.equals(account)) {
+                    i.remove();
+                    invalidSessions.add(session);
+                }
+            }
+        }
+        closeSessions(invalidSessions);
+    }
+    
+    private void evictIdleSessions() {
+        final List<Session> idleTimeoutSessions = new ArrayList<Session>(1);
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            for (final Iterator<Session> i = idleSessions.iterator(); i.hasNext();) {
+                final Session session = i.next();
+                if (now - session.releaseTime >= IDLE_TIMEOUT || session.isExpired(now)) {
+                    if (DEVELOPER_MODE) {
+                        Log.d(TAG, "Closing idle network session for " + session.account);
+                    }
+                    i.remove();
+                    idleTimeoutSessions.add(session);
+                }
+            }
+            
+            evictionScheduled = !idleSessions.isEmpty();
+            if (evictionScheduled) {
+                evictionExecutor.schedule(evictionTask, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        closeSessions(idleTimeoutSessions);
+    }
+    
+    /**
+     * Close sessions which were removed from the pool. This method must not
+     * be called with the pool lock held: closing a session may shut down its
+     * connections. The session slots are freed once the sessions are closed.
+     */
+    private void closeSessions(List<Session> sessions) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        for (final Session session : sessions) {
+            session.client.close();
+        }
+        synchronized (this) {
+            numSessions -= sessions.size();
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Authenticated session for an account.
+     * @author Pixmob
+     */
+    static class Session {
+        final String account;
+        final AppEngineClient client;
+        final long creationTime = System.currentTimeMillis();
+        long releaseTime;
+        /**
+         * Set when a request was successfully sent with this session.
+         */
+        boolean authenticated;
+        /**
+         * Set when this session was rejected by the remote server.
+         */
+        boolean invalid;
+        
+        public Session(final String account, final AppEngineClient client) {
+            this.account = account;
+            this.client = client;
+        }
+        
+        boolean isExpired(long now) {
+            return now - creationTime >= SESSION_MAX_AGE;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+/**
+ * Counters for authenticated sessions. A "hit" is a request sent with a
+ * session which was already authenticated, while a "miss" is a request which
+ * required a new authentication.
+ * @author Pixmob
+ */
+public class SessionStats {
+    long hits;
+    long misses;
+    long invalidations;
+    long authTime;
+    
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Get the number of sessions which were rejected by the remote server.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+    
+    /**
+     * Get the average time (in milliseconds) spent for the first request of
+     * a session, including authentication.
+     */
+    public synchronized long getAverageAuthTime() {
+        return misses != 0 ? authTime / misses : 0;
+    }
+    
+    /**
+     * Get an estimate of the time (in milliseconds) which was saved by reusing
+     * authenticated sessions.
+     */
+    public synchronized long getSavedTime() {
+        return hits * getAverageAuthTime();
+    }
+    
+    synchronized void onHit() {
+        hits++;
+    }
+    
+    synchronized void onMiss(long time) {
+        misses++;
+        authTime += time;
+    }
+    
+    synchronized void onInvalidation() {
+        invalidations++;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", invalidations=" + invalidations
+                + ", saved=" + getSavedTime() + " ms";
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.net;
+
+/**
+ * Byte counters for network requests. "Raw" counters are the sizes of the
+ * JSON content, while "wire" counters are the sizes of the content which was
+ * actually transferred, after compression.
+ * @author Pixmob
+ */
+public class TransferStats {
+    long requestRawBytes;
+    long requestWireBytes;
+    long responseRawBytes;
+    long responseWireBytes;
+    
+    public long getRequestRawBytes() {
+        return requestRawBytes;
+    }
+    
+    public long getRequestWireBytes() {
+        return requestWireBytes;
+    }
+    
+    public long getResponseRawBytes() {
+        return responseRawBytes;
+    }
+    
+    public long getResponseWireBytes() {
+        return responseWireBytes;
+    }
+    
+    /**
+     * Get the number of bytes which were not transferred thanks to
+     * compression.
+     */
+    public long getSavedBytes() {
+        return requestRawBytes + responseRawBytes - requestWireBytes - responseWireBytes;
+    }
+    
+    synchronized void add(TransferStats stats) {
+        requestRawBytes += stats.requestRawBytes;
+        requestWireBytes += stats.requestWireBytes;
+        responseRawBytes += stats.responseRawBytes;
+        responseWireBytes += stats.responseWireBytes;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "request=" + requestWireBytes + "/" + requestRawBytes + " bytes, response="
+                + responseWireBytes + "/" + responseRawBytes + " bytes, saved="
+                + getSavedBytes() + " bytes";
+    }
+}
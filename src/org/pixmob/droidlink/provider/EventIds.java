@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.provider;
+
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Conversions for event identifiers. Identifiers are UUID strings in the
+ * contract and in the remote API, while the database stores them as 16-byte
+ * blobs.
+ * @author Pixmob
+ */
+final class EventIds {
+    /**
+     * Column for the binary identifier.
+     */
+    static final String UUID_COLUMN = "uuid";
+    /**
+     * SQL expression which converts the binary identifier to its string form.
+     */
+    static final String TO_STRING_SQL;
+    static {
+        final String hex = "hex(" + UUID_COLUMN + ")";
+        TO_STRING_SQL = "lower(substr(" + hex + ",1,8)||'-'||substr(" + hex + ",9,4)||'-'||substr("
+                + hex + ",13,4)||'-'||substr(" + hex + ",17,4)||'-'||substr(" + hex + ",21,12))";
+    }
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int UUID_STRING_LENGTH = 36;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static long lastTimestamp;
+    private static int sequence;
+    
+    private EventIds() {
+    }
+    
+    /**
+     * Generate a time-ordered identifier, following the UUID version 7
+     * layout: the first 48 bits are the timestamp in milliseconds, followed by
+     * a 12-bit sequence and random bits. Identifiers sort by timestamp, both
+     * in their string and binary forms, so that new events are appended at
+     * the end of the identifier index.
+     * @param timestamp event creation time, in milliseconds
+     */
+    public static synchronized UUID newEventId(long timestamp) {
+        if (timestamp == lastTimestamp && sequence < 0xfff) {
+            // Keep identifiers ordered when several events are created in
+            // the same millisecond.
+            ++sequence;
+        } else {
+            lastTimestamp = timestamp;
+            sequence = RANDOM.nextInt(0x800);
+        }
+        final long msb = (timestamp & 0xffffffffffffL) << 16 | 0x7000 | sequence;
+        final long lsb = RANDOM.nextLong() & 0x3fffffffffffffffL | 0x8000000000000000L;
+        return new UUID(msb, lsb);
+    }
+    
+    /**
+     * Convert an identifier to its binary form.
+     * @throws IllegalArgumentException if the identifier is not a UUID
+     */
+    public static byte[] toBytes(String eventId) {
+        if (eventId == null || eventId.length() != UUID_STRING_LENGTH) {
+            throw new IllegalArgumentException("Invalid event identifier: " + eventId);
+        }
+        final byte[] bytes = new byte[16];
+        int j = 0;
+        for (int i = 0; i < UUID_STRING_LENGTH; ++i) {
+            final char c = eventId.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    throw new IllegalArgumentException("Invalid event identifier: " + eventId);
+                }
+                continue;
+            }
+            final int digit = Character.digit(c, 16);
+            if (digit == -1) {
+                throw new IllegalArgumentException("Invalid event identifier: " + eventId);
+            }
+            bytes[j / 2] |= digit << (j % 2 == 0 ? 4 : 0);
+            ++j;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Get the canonical form of an identifier: identifiers are returned by
+     * the provider in lower case.
+     * @return the lower case identifier, or <code>null</code> if the
+     *         identifier is not a UUID
+     */
+    public static String normalize(String eventId) {
+        try {
+            toBytes(eventId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return eventId.toLowerCase(Locale.US);
+    }
+    
+    public static byte[] toBytes(UUID uuid) {
+        final byte[] bytes = new byte[16];
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; ++i) {
+            bytes[i] = (byte) (msb >>> (56 - i * 8));
+            bytes[i + 8] = (byte) (lsb >>> (56 - i * 8));
+        }
+        return bytes;
+    }
+    
+    /**
+     * Create a SQL literal for an identifier.
+     * @return a blob literal, or <code>null</code> if the identifier is not a
+     *         UUID
+     */
+    public static String toSqlLiteral(String eventId) {
+        final byte[] bytes;
+        try {
+            bytes = toBytes(eventId);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder(35).append("X'");
+        for (final byte b : bytes) {
+            buf.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return buf.append('\'').toString();
+    }
+    
+    /**
+     * Create a selection matching a single identifier.
+     */
+    public static String createSelection(String eventId) {
+        final String literal = toSqlLiteral(eventId);
+        // An invalid identifier cannot match any event.
+        return literal != null ? UUID_COLUMN + "=" + literal : "0";
+    }
+    
+    /**
+     * Create a selection matching a collection of identifiers.
+     */
+    public static String createSelection(Collection<String> eventIds) {
+        final StringBuilder buf = new StringBuilder(UUID_COLUMN.length() + 6 + eventIds.size()
+                * 36).append(UUID_COLUMN).append(" IN (");
+        boolean empty = true;
+        for (final String eventId : eventIds) {
+            final String literal = toSqlLiteral(eventId);
+            if (literal != null) {
+                if (!empty) {
+                    buf.append(',');
+                }
+                buf.append(literal);
+                empty = false;
+            }
+        }
+        return empty ? "0" : buf.append(')').toString();
+    }
+}
@@ -18,6 +18,7 @@ package org.pixmob.droidlink.provider;
 import static android.provider.BaseColumns._ID;
 import static org.pixmob.droidlink.Constants.DEVELOPER_MODE;
 import static org.pixmob.droidlink.Constants.TAG;
+import static org.pixmob.droidlink.provider.EventsContract.Event.ATTEMPTS;
 import static org.pixmob.droidlink.provider.EventsContract.Event.CONTENT_ITEM_TYPE;
 import static org.pixmob.droidlink.provider.EventsContract.Event.CONTENT_TYPE;
 import static org.pixmob.droidlink.provider.EventsContract.Event.CREATED;
@@ -25,12 +26,26 @@ import static org.pixmob.droidlink.provider.EventsContract.Event.DEFAULT_SORT_OR
 import static org.pixmob.droidlink.provider.EventsContract.Event.DEVICE_ID;
 import static org.pixmob.droidlink.provider.EventsContract.Event.MESSAGE;
 import static org.pixmob.droidlink.provider.EventsContract.Event.NAME;
+import static org.pixmob.droidlink.provider.EventsContract.Event.NEXT_ATTEMPT;
 import static org.pixmob.droidlink.provider.EventsContract.Event.NUMBER;
 import static org.pixmob.droidlink.provider.EventsContract.Event.STATE;
 import static org.pixmob.droidlink.provider.EventsContract.Event.TYPE;
+import static org.pixmob.droidlink.provider.EventsContract.Event.UPLOADED;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.AVAILABLE;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.ENQUEUED;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.OPERATION;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.SEQUENCE;
 
 import java.util.ArrayList;
-import java.util.UUID;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.pixmob.droidlink.feature.Features;
+import org.pixmob.droidlink.feature.WriteAheadLoggingFeature;
 
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
@@ -40,10 +55,12 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.net.Uri;
 import android.text.TextUtils;
@@ -55,21 +72,83 @@ import android.util.Log;
  */
 public class EventsContentProvider extends ContentProvider {
     private static final String DATABASE_NAME = "events.db";
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 9;
     private static final String EVENTS_TABLE = "events";
+    /**
+     * Full-text index for event names, numbers and messages. Rows are linked
+     * to the events table with <code>docid</code>, which is the event row
+     * identifier.
+     */
+    private static final String EVENTS_FTS_TABLE = "events_fts";
+    /**
+     * Integer primary key for the events table. Event identifiers are stored
+     * in the column {@link EventIds#UUID_COLUMN}.
+     */
+    static final String ROW_ID = "row_id";
+    /**
+     * Queue of pending remote operations. Rows are written by triggers when
+     * the state of an event is changed, in the same transaction: an operation
+     * is appended when an event is waiting for upload or deletion, and it is
+     * removed once the event leaves this state. The queue is read in
+     * insertion order, and events are looked up by identifier: the events
+     * table is not scanned.
+     */
+    private static final String OUTBOX_TABLE = "outbox";
+    private static final String OUTBOX_EVENT_UUID = "eventuuid";
     private static final String[] NOT_NULL_COLUMNS = { TYPE, DEVICE_ID };
+    /**
+     * Sort order for keyset pagination: events with the same creation time
+     * are sorted by identifier.
+     */
+    private static final String PAGE_SORT_ORDER = CREATED + " DESC, " + EventIds.UUID_COLUMN
+            + " DESC";
     
     private static final int EVENTS = 1;
     private static final int EVENT_ID = 2;
+    private static final int SEARCH = 3;
+    private static final int OUTBOX = 4;
     
     private static final UriMatcher URI_MATCHER;
     static {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
         URI_MATCHER.addURI(EventsContract.AUTHORITY, "events", EVENTS);
         URI_MATCHER.addURI(EventsContract.AUTHORITY, "events/*", EVENT_ID);
+        URI_MATCHER.addURI(EventsContract.AUTHORITY, "search", SEARCH);
+        URI_MATCHER.addURI(EventsContract.AUTHORITY, "outbox", OUTBOX);
+    }
+    
+    /**
+     * Projection map for the events table: the binary identifier is returned
+     * as a string, with the column name {@link android.provider.BaseColumns#_ID}.
+     */
+    private static final Map<String, String> EVENTS_PROJECTION_MAP;
+    static {
+        EVENTS_PROJECTION_MAP = new HashMap<String, String>(10);
+        EVENTS_PROJECTION_MAP.put(_ID, EventIds.TO_STRING_SQL + " AS " + _ID);
+        for (final String column : new String[] { DEVICE_ID, CREATED, TYPE, NUMBER, NAME,
+                MESSAGE, STATE, ATTEMPTS, NEXT_ATTEMPT, UPLOADED }) {
+            EVENTS_PROJECTION_MAP.put(column, column);
+        }
+    }
+    /**
+     * Projection map for the outbox, which is joined with the events table.
+     */
+    private static final Map<String, String> OUTBOX_PROJECTION_MAP;
+    static {
+        OUTBOX_PROJECTION_MAP = new HashMap<String, String>(EVENTS_PROJECTION_MAP);
+        OUTBOX_PROJECTION_MAP.put(OPERATION, OPERATION);
+        OUTBOX_PROJECTION_MAP.put(ENQUEUED, ENQUEUED);
+        OUTBOX_PROJECTION_MAP.put(AVAILABLE, AVAILABLE);
+        OUTBOX_PROJECTION_MAP.put(SEQUENCE, SEQUENCE);
     }
     
     private SQLiteOpenHelper dbHelper;
+    /**
+     * Set while a batch is running in the current thread: <code>true</code>
+     * if the batch changed the database.
+     */
+    private final ThreadLocal<Boolean> batchChanges = new ThreadLocal<Boolean>();
+    private final StatementCache statementCache = new StatementCache();
     
     @Override
     public boolean onCreate() {
@@ -77,10 +156,18 @@ public class EventsContentProvider extends ContentProvider {
         return true;
     }
     
+    @Override
+    public void shutdown() {
+        statementCache.close();
+        dbHelper.close();
+    }
+    
     @Override
     public String getType(Uri uri) {
         switch (URI_MATCHER.match(uri)) {
             case EVENTS:
+            case SEARCH:
+            case OUTBOX:
                 return CONTENT_TYPE;
             case EVENT_ID:
                 return CONTENT_ITEM_TYPE;
@@ -97,7 +184,10 @@ public class EventsContentProvider extends ContentProvider {
         }
         
         // Execute batch operations in a single transaction for performance.
+        // Change notifications are sent once the transaction is committed.
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        boolean successful = false;
+        batchChanges.set(Boolean.FALSE);
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
@@ -106,9 +196,16 @@ public class EventsContentProvider extends ContentProvider {
                 results[i] = operations.get(i).apply(this, results, i);
             }
             db.setTransactionSuccessful();
+            successful = true;
             return results;
         } finally {
             db.endTransaction();
+            
+            final boolean changed = Boolean.TRUE.equals(batchChanges.get());
+            batchChanges.remove();
+            if (successful && changed) {
+                notifyChange(EventsContract.CONTENT_URI);
+            }
         }
     }
     
@@ -117,24 +214,64 @@ public class EventsContentProvider extends ContentProvider {
             String sortOrder) {
         final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(EVENTS_TABLE);
+        qb.setProjectionMap(EVENTS_PROJECTION_MAP);
         
+        String orderBy = sortOrder;
+        String limit = null;
         switch (URI_MATCHER.match(uri)) {
             case EVENT_ID:
-                qb.appendWhere(_ID + "='" + uri.getPathSegments().get(1) + "'");
+                qb.appendWhere(EventIds.createSelection(uri.getPathSegments().get(1)));
+                break;
+            case SEARCH:
+                final String match = createMatchExpression(uri
+                        .getQueryParameter(EventsContract.PARAM_QUERY));
+                if (match == null) {
+                    // Nothing to search: no event is returned.
+                    qb.appendWhere("0");
+                } else {
+                    qb.appendWhere(ROW_ID + " IN (SELECT docid FROM " + EVENTS_FTS_TABLE
+                            + " WHERE " + EVENTS_FTS_TABLE + " MATCH "
+                            + DatabaseUtils.sqlEscapeString(match) + ")");
+                }
+                break;
+            case EVENTS:
+                limit = uri.getQueryParameter(EventsContract.PARAM_LIMIT);
+                if (limit != null) {
+                    if (!TextUtils.isEmpty(sortOrder)) {
+                        throw new IllegalArgumentException(
+                                "Sort order is not supported for a page of events");
+                    }
+                    orderBy = PAGE_SORT_ORDER;
+                    appendPageWhere(qb, uri);
+                }
+                break;
+            case OUTBOX:
+                // Operations are read in the order they were requested.
+                if (!TextUtils.isEmpty(sortOrder)) {
+                    throw new IllegalArgumentException(
+                            "Sort order is not supported for the outbox");
+                }
+                // A cross join makes the outbox the outer table, whatever the
+                // selection: operations are read in the outbox order, and each
+                // event is found with the identifier index.
+                qb.setTables(OUTBOX_TABLE + " CROSS JOIN " + EVENTS_TABLE + " ON (" + EVENTS_TABLE
+                        + "." + EventIds.UUID_COLUMN + "=" + OUTBOX_TABLE + "."
+                        + OUTBOX_EVENT_UUID + ")");
+                qb.setProjectionMap(OUTBOX_PROJECTION_MAP);
+                orderBy = OUTBOX_TABLE + "." + SEQUENCE;
+                limit = uri.getQueryParameter(EventsContract.PARAM_LIMIT);
                 break;
             default:
                 break;
         }
         
-        final String orderBy;
-        if (TextUtils.isEmpty(sortOrder)) {
+        if (TextUtils.isEmpty(orderBy)) {
             orderBy = DEFAULT_SORT_ORDER;
-        } else {
-            orderBy = sortOrder;
         }
         
         final SQLiteDatabase db = dbHelper.getReadableDatabase();
-        final Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        final Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy,
+            limit);
         c.setNotificationUri(getContext().getContentResolver(), uri);
         
         return c;
@@ -150,33 +287,102 @@ public class EventsContentProvider extends ContentProvider {
                 count = db.delete(EVENTS_TABLE, selection, selectionArgs);
                 break;
             case EVENT_ID:
-                final String id = uri.getPathSegments().get(1);
-                String fullSelection = _ID + "='" + id + "'";
-                if (!TextUtils.isEmpty(selection)) {
-                    fullSelection += " AND (" + selection + ")";
+                final byte[] eventId = getEventId(uri);
+                if (eventId == null) {
+                    count = 0;
+                    break;
                 }
-                count = db.delete(EVENTS_TABLE, fullSelection, selectionArgs);
+                final List<Object> bindArgs = new ArrayList<Object>(4);
+                final StringBuilder sql = new StringBuilder("DELETE FROM ").append(EVENTS_TABLE);
+                appendEventIdWhere(sql, bindArgs, eventId, selection, selectionArgs);
+                count = statementCache.executeUpdateDelete(db, sql.toString(), bindArgs.toArray());
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported Uri: " + uri);
         }
         
-        getContext().getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
     
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        final String eventId = prepareInsert(values, System.currentTimeMillis());
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        if (insertRow(db, values) == -1) {
+            throw new SQLException("Failed to insert row into " + uri);
+        }
+        
+        final Uri itemUri = Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId);
+        notifyChange(itemUri);
+        return itemUri;
+    }
+    
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (URI_MATCHER.match(uri) != EVENTS) {
+            throw new IllegalArgumentException("Unsupported Uri: " + uri);
+        }
+        if (values.length == 0) {
+            return 0;
+        }
+        
+        // Check every row before writing: invalid rows are rejected without
+        // starting a transaction. Rows are copied, so that caller values are
+        // not changed when a row is rejected.
+        final long now = System.currentTimeMillis();
+        final ContentValues[] rows = new ContentValues[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            rows[i] = new ContentValues(values[i]);
+            prepareInsert(rows[i], now);
+        }
+        
+        // Insert every row in a single transaction, with a single
+        // notification.
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final ContentValues row : rows) {
+                if (insertRow(db, row) == -1) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        notifyChange(EventsContract.CONTENT_URI);
+        return values.length;
+    }
+    
+    /**
+     * Check row values before inserting an event, and set default values.
+     * @param now default creation time
+     * @return the event identifier
+     */
+    private static String prepareInsert(ContentValues values, long now) {
         for (final String notNullColumn : NOT_NULL_COLUMNS) {
             if (!values.containsKey(notNullColumn)) {
                 throw new SQLException("Missing value for " + notNullColumn);
             }
         }
-        if (!values.containsKey(_ID)) {
-            values.put(_ID, UUID.randomUUID().toString());
+        if (values.getAsLong(CREATED) == null) {
+            // The creation time is missing or null.
+            values.put(CREATED, now);
         }
-        if (!values.containsKey(CREATED)) {
-            values.put(CREATED, System.currentTimeMillis());
+        final String eventId;
+        if (values.containsKey(_ID)) {
+            eventId = values.getAsString(_ID);
+            values.remove(_ID);
+        } else {
+            // New identifiers follow the creation order.
+            eventId = EventIds.newEventId(values.getAsLong(CREATED)).toString();
+        }
+        try {
+            values.put(EventIds.UUID_COLUMN, EventIds.toBytes(eventId));
+        } catch (IllegalArgumentException e) {
+            throw new SQLException(e.getMessage());
         }
         if (!values.containsKey(STATE)) {
             values.put(STATE, Integer.valueOf(EventsContract.PENDING_UPLOAD_STATE));
@@ -193,21 +399,39 @@ public class EventsContentProvider extends ContentProvider {
                 values.remove(NUMBER);
             }
         }
-        
-        final SQLiteDatabase db = dbHelper.getWritableDatabase();
-        final long rowID = db.insert(EVENTS_TABLE, "not_null", values);
-        if (rowID == -1) {
-            throw new SQLException("Failed to insert row into " + uri);
+        return eventId;
+    }
+    
+    /**
+     * Insert a row with a compiled statement.
+     * @return the row identifier, or <code>-1</code> if the row could not be
+     *         inserted
+     */
+    private long insertRow(SQLiteDatabase db, ContentValues values) {
+        // Rows with the same columns share a compiled statement.
+        final SortedMap<String, Object> columns = toSortedMap(values);
+        final StringBuilder sql = new StringBuilder("INSERT INTO ").append(EVENTS_TABLE).append(
+            " (");
+        final StringBuilder params = new StringBuilder(columns.size() * 2);
+        for (final String column : columns.keySet()) {
+            if (params.length() != 0) {
+                sql.append(',');
+                params.append(',');
+            }
+            sql.append(column);
+            params.append('?');
         }
+        sql.append(") VALUES (").append(params).append(')');
         
-        final Uri itemUri = Uri.withAppendedPath(EventsContract.CONTENT_URI, values
-                .getAsString(_ID));
-        getContext().getContentResolver().notifyChange(itemUri, null, false);
-        return itemUri;
+        return statementCache.executeInsert(db, sql.toString(), columns.values().toArray());
     }
     
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        if (values.containsKey(_ID)) {
+            throw new SQLException("Event identifiers cannot be updated");
+        }
+        
         final SQLiteDatabase db = dbHelper.getWritableDatabase();
         final int count;
         switch (URI_MATCHER.match(uri)) {
@@ -215,31 +439,336 @@ public class EventsContentProvider extends ContentProvider {
                 count = db.update(EVENTS_TABLE, values, selection, selectionArgs);
                 break;
             case EVENT_ID:
-                final String id = uri.getPathSegments().get(1);
-                String fullSelection = _ID + "='" + id + "'";
-                if (!TextUtils.isEmpty(selection)) {
-                    fullSelection += " AND (" + selection + ")";
+                if (values.size() == 0) {
+                    throw new IllegalArgumentException("Empty values");
                 }
-                count = db.update(EVENTS_TABLE, values, fullSelection, selectionArgs);
+                final byte[] eventId = getEventId(uri);
+                if (eventId == null) {
+                    count = 0;
+                    break;
+                }
+                final SortedMap<String, Object> columns = toSortedMap(values);
+                final List<Object> bindArgs = new ArrayList<Object>(columns.size() + 4);
+                final StringBuilder sql = new StringBuilder("UPDATE ").append(EVENTS_TABLE)
+                        .append(" SET ");
+                for (final Map.Entry<String, Object> e : columns.entrySet()) {
+                    if (!bindArgs.isEmpty()) {
+                        sql.append(',');
+                    }
+                    sql.append(e.getKey()).append("=?");
+                    bindArgs.add(e.getValue());
+                }
+                appendEventIdWhere(sql, bindArgs, eventId, selection, selectionArgs);
+                count = statementCache.executeUpdateDelete(db, sql.toString(), bindArgs.toArray());
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported Uri: " + uri);
         }
         
-        getContext().getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
     
+    /**
+     * Create a full-text query from user input: every word is a prefix, and
+     * an event must match every word. Characters which are not letters or
+     * digits are ignored, so that user input cannot contain query operators.
+     * @return a full-text query, or <code>null</code> if there is no word to
+     *         search
+     */
+    private static String createMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        final StringBuilder match = new StringBuilder(query.length() + 8);
+        final StringBuilder word = new StringBuilder(16);
+        final int len = query.length();
+        for (int i = 0; i <= len; ++i) {
+            final char c = i < len ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() != 0) {
+                if (match.length() != 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return match.length() != 0 ? match.toString() : null;
+    }
+    
+    /**
+     * Append a WHERE clause for a page of events: only events after the last
+     * event of the previous page are selected. The clause is a range on the
+     * pagination index, so that rows from previous pages are not read again.
+     */
+    private static void appendPageWhere(SQLiteQueryBuilder qb, Uri uri) {
+        try {
+            if (Integer.parseInt(uri.getQueryParameter(EventsContract.PARAM_LIMIT)) <= 0) {
+                throw new IllegalArgumentException("Invalid page size: " + uri);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page size: " + uri);
+        }
+        
+        final String createdParam = uri.getQueryParameter(EventsContract.PARAM_BEFORE_CREATED);
+        if (createdParam == null) {
+            // This is the first page.
+            return;
+        }
+        final long beforeCreated;
+        try {
+            beforeCreated = Long.parseLong(createdParam);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid creation time: " + uri);
+        }
+        
+        final String beforeId = uri.getQueryParameter(EventsContract.PARAM_BEFORE_ID);
+        if (beforeId == null) {
+            qb.appendWhere(CREATED + "<" + beforeCreated);
+        } else {
+            final String beforeIdLiteral = EventIds.toSqlLiteral(beforeId);
+            if (beforeIdLiteral == null) {
+                throw new IllegalArgumentException("Invalid event identifier: " + uri);
+            }
+            qb.appendWhere(CREATED + "<" + beforeCreated + " OR (" + CREATED + "="
+                    + beforeCreated + " AND " + EventIds.UUID_COLUMN + "<" + beforeIdLiteral
+                    + ")");
+        }
+    }
+    
+    /**
+     * Get the binary identifier from an event Uri.
+     * @return the event identifier, or <code>null</code> if the Uri does not
+     *         contain a valid identifier
+     */
+    private static byte[] getEventId(Uri uri) {
+        try {
+            return EventIds.toBytes(uri.getPathSegments().get(1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Append a WHERE clause matching an event identifier. The identifier is a
+     * statement argument: statements for different events share the same SQL,
+     * and they can be compiled once.
+     */
+    private static void appendEventIdWhere(StringBuilder sql, List<Object> bindArgs,
+            byte[] eventId, String selection, String[] selectionArgs) {
+        sql.append(" WHERE ").append(EventIds.UUID_COLUMN).append("=?");
+        bindArgs.add(eventId);
+        if (!TextUtils.isEmpty(selection)) {
+            sql.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null) {
+                bindArgs.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+    }
+    
+    /**
+     * Get row values sorted by column name.
+     */
+    private static SortedMap<String, Object> toSortedMap(ContentValues values) {
+        final SortedMap<String, Object> columns = new TreeMap<String, Object>();
+        for (final Map.Entry<String, Object> e : values.valueSet()) {
+            columns.put(e.getKey(), e.getValue());
+        }
+        return columns;
+    }
+    
+    /**
+     * Notify observers that events were changed. While a batch is running,
+     * notifications are replaced with a single notification for the events
+     * collection, which is sent when the batch is committed.
+     */
+    private void notifyChange(Uri uri) {
+        final Boolean changes = batchChanges.get();
+        if (changes == null) {
+            getContext().getContentResolver().notifyChange(uri, null, false);
+        } else if (!changes.booleanValue()) {
+            batchChanges.set(Boolean.TRUE);
+        }
+    }
+    
     /**
      * Helper class for managing the application database.
      * @author Pixmob
      */
     static class EventsDatabaseHelper extends SQLiteOpenHelper {
-        private static final String DATABASE_CREATE = "CREATE TABLE " + EVENTS_TABLE + " (" + _ID
-                + " TEXT PRIMARY KEY, " + DEVICE_ID + " TEXT, " + CREATED + " LONG, " + TYPE
+        private static final String DATABASE_CREATE = "CREATE TABLE " + EVENTS_TABLE + " ("
+                + ROW_ID + " INTEGER PRIMARY KEY, " + EventIds.UUID_COLUMN
+                + " BLOB NOT NULL UNIQUE, " + DEVICE_ID + " TEXT, " + CREATED + " LONG, " + TYPE
                 + " INT, " + NUMBER + " TEXT, " + NAME + " TEXT, " + MESSAGE + " TEXT, " + STATE
-                + " INT);";
-        
+                + " INT, " + ATTEMPTS + " INT DEFAULT 0, " + NEXT_ATTEMPT + " LONG DEFAULT 0, "
+                + UPLOADED + " LONG DEFAULT 0);";
+        /**
+         * Indexes for the queries sent by the synchronization and the purge
+         * service, and for the default sort order.
+         */
+        private static final String CREATED_UUID_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS "
+                + EVENTS_TABLE + "_created_uuid_idx ON " + EVENTS_TABLE + " (" + CREATED + ", "
+                + EventIds.UUID_COLUMN + ");";
+        private static final String[] INDEXES_CREATE = {
+                "CREATE INDEX IF NOT EXISTS " + EVENTS_TABLE + "_state_deviceid_idx ON "
+                        + EVENTS_TABLE + " (" + STATE + ", " + DEVICE_ID + ");",
+                CREATED_UUID_INDEX_CREATE, };
+        private static final String FTS_COLUMNS = NUMBER + ", " + NAME + ", " + MESSAGE;
+        /**
+         * Full-text index, and the triggers which keep it up to date when
+         * events are written.
+         */
+        private static final String[] FTS_CREATE = {
+                "CREATE VIRTUAL TABLE " + EVENTS_FTS_TABLE + " USING fts3(" + FTS_COLUMNS + ");",
+                "CREATE TRIGGER " + EVENTS_TABLE + "_fts_insert AFTER INSERT ON " + EVENTS_TABLE
+                        + " BEGIN INSERT INTO " + EVENTS_FTS_TABLE + " (docid, " + FTS_COLUMNS
+                        + ") VALUES (new." + ROW_ID + ", new." + NUMBER + ", new." + NAME
+                        + ", new." + MESSAGE + "); END;",
+                "CREATE TRIGGER " + EVENTS_TABLE + "_fts_update AFTER UPDATE OF " + FTS_COLUMNS
+                        + " ON " + EVENTS_TABLE + " BEGIN UPDATE " + EVENTS_FTS_TABLE + " SET "
+                        + NUMBER + "=new." + NUMBER + ", " + NAME + "=new." + NAME + ", "
+                        + MESSAGE + "=new." + MESSAGE + " WHERE docid=new." + ROW_ID + "; END;",
+                "CREATE TRIGGER " + EVENTS_TABLE + "_fts_delete AFTER DELETE ON " + EVENTS_TABLE
+                        + " BEGIN DELETE FROM " + EVENTS_FTS_TABLE + " WHERE docid=old." + ROW_ID
+                        + "; END;", };
+        private static final String OUTBOX_NOW_SQL = "CAST(strftime('%s', 'now') AS INTEGER)"
+                + " * 1000";
+        private static final String OUTBOX_COLUMNS = OPERATION + ", " + OUTBOX_EVENT_UUID + ", "
+                + AVAILABLE + ", " + ENQUEUED;
+        private static final String PENDING_STATES = EventsContract.PENDING_UPLOAD_STATE + ", "
+                + EventsContract.PENDING_DELETE_STATE;
+        /**
+         * Outbox table, and the triggers which keep it up to date. An
+         * operation is appended when an event is waiting for upload or
+         * deletion, and this operation is removed when the event state changes
+         * again, or when the event is deleted. Rows are never moved: the upload
+         * availability is the only column which is updated, when an upload is
+         * delayed.
+         */
+        private static final String[] OUTBOX_CREATE = {
+                "CREATE TABLE " + OUTBOX_TABLE + " (" + SEQUENCE + " INTEGER PRIMARY KEY, "
+                        + OPERATION + " INT NOT NULL, " + OUTBOX_EVENT_UUID + " BLOB NOT NULL, "
+                        + AVAILABLE + " LONG DEFAULT 0, " + ENQUEUED + " LONG);",
+                "CREATE INDEX IF NOT EXISTS " + OUTBOX_TABLE + "_eventuuid_idx ON " + OUTBOX_TABLE
+                        + " (" + OUTBOX_EVENT_UUID + ");",
+                "CREATE TRIGGER " + EVENTS_TABLE + "_outbox_insert AFTER INSERT ON " + EVENTS_TABLE
+                        + " WHEN new." + STATE + " IN (" + PENDING_STATES + ") BEGIN "
+                        + outboxInsertSql() + " END;",
+                "CREATE TRIGGER " + EVENTS_TABLE + "_outbox_enqueue AFTER UPDATE OF " + STATE
+                        + " ON " + EVENTS_TABLE + " WHEN new." + STATE + "<>old." + STATE
+                        + " AND new." + STATE + " IN (" + PENDING_STATES + ") BEGIN "
+                        + outboxInsertSql() + " END;",
+                // Only the operation for the previous state is removed, so
+                // that these triggers can run in any order.
+                "CREATE TRIGGER " + EVENTS_TABLE + "_outbox_dequeue AFTER UPDATE OF " + STATE
+                        + " ON " + EVENTS_TABLE + " WHEN new." + STATE + "<>old." + STATE
+                        + " AND old." + STATE + " IN (" + PENDING_STATES + ") BEGIN DELETE FROM "
+                        + OUTBOX_TABLE + " WHERE " + OUTBOX_EVENT_UUID + "=old."
+                        + EventIds.UUID_COLUMN + " AND " + OPERATION + "="
+                        + toOperationSql("old." + STATE) + "; END;",
+                "CREATE TRIGGER " + EVENTS_TABLE + "_outbox_retry AFTER UPDATE OF " + NEXT_ATTEMPT
+                        + " ON " + EVENTS_TABLE + " BEGIN UPDATE " + OUTBOX_TABLE + " SET "
+                        + AVAILABLE + "=new." + NEXT_ATTEMPT + " WHERE " + OUTBOX_EVENT_UUID
+                        + "=new." + EventIds.UUID_COLUMN + " AND " + OPERATION + "="
+                        + EventsContract.UPLOAD_OPERATION + "; END;",
+                "CREATE TRIGGER " + EVENTS_TABLE + "_outbox_delete AFTER DELETE ON " + EVENTS_TABLE
+                        + " BEGIN DELETE FROM " + OUTBOX_TABLE + " WHERE " + OUTBOX_EVENT_UUID
+                        + "=old." + EventIds.UUID_COLUMN + "; END;", };
+        /**
+         * Indexes for versions 3 and 4. Migrations use their own statements,
+         * as current indexes may refer to columns which do not exist yet.
+         */
+        private static final String[] V3_INDEXES_CREATE = {
+                "CREATE INDEX IF NOT EXISTS " + EVENTS_TABLE + "_state_deviceid_idx ON "
+                        + EVENTS_TABLE + " (" + STATE + ", " + DEVICE_ID + ");",
+                "CREATE INDEX IF NOT EXISTS " + EVENTS_TABLE + "_created_idx ON " + EVENTS_TABLE
+                        + " (" + CREATED + ");", };
+        /**
+         * Frequent queries, whose query plan is logged in developer mode.
+         */
+        private static final String[] HOT_QUERIES = {
+                "SELECT " + ROW_ID + " FROM " + OUTBOX_TABLE + " CROSS JOIN " + EVENTS_TABLE
+                        + " ON (" + EVENTS_TABLE + "." + EventIds.UUID_COLUMN + "="
+                        + OUTBOX_TABLE + "." + OUTBOX_EVENT_UUID + ") WHERE " + OPERATION + "="
+                        + EventsContract.UPLOAD_OPERATION + " AND " + DEVICE_ID + "='0' AND "
+                        + AVAILABLE + "<=0 AND " + SEQUENCE + ">0 ORDER BY " + OUTBOX_TABLE + "."
+                        + SEQUENCE + " LIMIT 50",
+                "SELECT " + ROW_ID + " FROM " + EVENTS_TABLE + " WHERE " + STATE + "="
+                        + EventsContract.UPLOADED_STATE,
+                "SELECT " + ROW_ID + " FROM " + EVENTS_TABLE + " WHERE " + CREATED + "<=0",
+                "SELECT " + ROW_ID + " FROM " + EVENTS_TABLE + " WHERE " + EventIds.UUID_COLUMN
+                        + " IN (X'00000000000000000000000000000000')",
+                "SELECT * FROM " + EVENTS_TABLE + " ORDER BY " + DEFAULT_SORT_ORDER,
+                "SELECT * FROM " + EVENTS_TABLE + " WHERE " + CREATED + "<0 OR (" + CREATED
+                        + "=0 AND " + EventIds.UUID_COLUMN
+                        + "<X'00000000000000000000000000000000') ORDER BY " + PAGE_SORT_ORDER
+                        + " LIMIT 50", };
+        /**
+         * Schema migrations, sorted by version: there must be one migration
+         * for each version, starting after the oldest version which can be
+         * upgraded without losing data.
+         */
+        private static final Migration[] MIGRATIONS = { new Migration(3) {
+            @Override
+            public void apply(SQLiteDatabase db) {
+                // Version 3 adds indexes.
+                for (final String indexCreate : V3_INDEXES_CREATE) {
+                    db.execSQL(indexCreate);
+                }
+            }
+        }, new Migration(4) {
+            @Override
+            public void apply(SQLiteDatabase db) {
+                // Version 4 stores event identifiers as blobs, with an integer
+                // primary key.
+                migrateToBinaryIds(db);
+            }
+        }, new Migration(5) {
+            @Override
+            public void apply(SQLiteDatabase db) {
+                // Version 5 replaces the index on the creation time with an
+                // index for keyset pagination.
+                db.execSQL(CREATED_UUID_INDEX_CREATE);
+                db.execSQL("DROP INDEX IF EXISTS " + EVENTS_TABLE + "_created_idx");
+            }
+        }, new Migration(6) {
+            @Override
+            public void apply(SQLiteDatabase db) {
+                // Version 6 adds a full-text index.
+                createFullTextIndex(db);
+                db.execSQL("INSERT INTO " + EVENTS_FTS_TABLE + " (docid, " + FTS_COLUMNS
+                        + ") SELECT " + ROW_ID + ", " + FTS_COLUMNS + " FROM " + EVENTS_TABLE);
+            }
+        }, new Migration(7) {
+            @Override
+            public void apply(SQLiteDatabase db) {
+                // Version 7 adds upload retry columns.
+                db.execSQL("ALTER TABLE " + EVENTS_TABLE + " ADD COLUMN " + ATTEMPTS
+                        + " INT DEFAULT 0");
+                db.execSQL("ALTER TABLE " + EVENTS_TABLE + " ADD COLUMN " + NEXT_ATTEMPT
+                        + " LONG DEFAULT 0");
+            }
+        }, new Migration(8) {
+            @Override
+            public void apply(SQLiteDatabase db) {
+                // Version 8 adds the outbox: pending operations are read
+                // from event states.
+                createOutbox(db);
+                db.execSQL("INSERT INTO " + OUTBOX_TABLE + " (" + OUTBOX_COLUMNS + ") SELECT "
+                        + toOperationSql(STATE) + ", " + EventIds.UUID_COLUMN + ", "
+                        + toAvailableSql("") + ", " + CREATED + " FROM " + EVENTS_TABLE
+                        + " WHERE " + STATE + " IN (" + PENDING_STATES + ") ORDER BY " + CREATED);
+            }
+        }, new Migration(9) {
+            @Override
+            public void apply(SQLiteDatabase db) {
+                // Version 9 adds the upload time.
+                db.execSQL("ALTER TABLE " + EVENTS_TABLE + " ADD COLUMN " + UPLOADED
+                        + " LONG DEFAULT 0");
+            }
+        }, };
         public EventsDatabaseHelper(final Context context, final String name,
                 final CursorFactory factory, final int version) {
             super(context, name, factory, version);
@@ -251,35 +780,231 @@ public class EventsContentProvider extends ContentProvider {
                 Log.i(TAG, "Creating database: " + DATABASE_CREATE);
             }
             db.execSQL(DATABASE_CREATE);
+            createIndexes(db);
+            createFullTextIndex(db);
+            createOutbox(db);
             
             if (DEVELOPER_MODE) {
+                explainQueryPlans(db);
+                
                 Log.i(TAG, "Inserting sample data");
                 
                 final String deviceId = "12345";
                 
+                long created = System.currentTimeMillis();
                 ContentValues cv = new ContentValues();
+                cv.put(EventIds.UUID_COLUMN, EventIds.toBytes(EventIds.newEventId(created)));
                 cv.put(DEVICE_ID, deviceId);
-                cv.put(CREATED, System.currentTimeMillis());
+                cv.put(CREATED, created);
                 cv.put(NUMBER, "1234567890");
                 cv.put(NAME, "John Doe");
                 cv.put(MESSAGE, "Hello world!");
                 cv.put(TYPE, EventsContract.RECEIVED_SMS_TYPE);
                 db.insert(EVENTS_TABLE, "not_null", cv);
                 
+                created -= 100000;
                 cv = new ContentValues();
+                cv.put(EventIds.UUID_COLUMN, EventIds.toBytes(EventIds.newEventId(created)));
                 cv.put(DEVICE_ID, deviceId);
-                cv.put(CREATED, System.currentTimeMillis() - 100000);
+                cv.put(CREATED, created);
                 cv.put(TYPE, EventsContract.MISSED_CALL_TYPE);
                 db.insert(EVENTS_TABLE, "not_null", cv);
             }
         }
         
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            
+            // The UI reads events while the synchronization writes them:
+            // with write-ahead logging, these queries are not blocked by sync
+            // transactions.
+            if (!db.isReadOnly()) {
+                final boolean walEnabled = Features.getFeature(WriteAheadLoggingFeature.class)
+                        .enable(db);
+                if (DEVELOPER_MODE) {
+                    Log.i(TAG, "Write-ahead logging " + (walEnabled ? "enabled" : "not supported"));
+                }
+            }
+        }
+        
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion
-                    + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + EVENTS_TABLE);
-            onCreate(db);
+            if (oldVersion < MIGRATIONS[0].version - 1) {
+                // No migration is available from this version.
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS " + OUTBOX_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + EVENTS_FTS_TABLE);
+                db.execSQL("DROP TABLE IF EXISTS " + EVENTS_TABLE);
+                onCreate(db);
+                return;
+            }
+            
+            // Apply migrations one version at a time: existing events are
+            // kept. This method is called in a transaction, so that a failed
+            // migration leaves the database unchanged.
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            for (final Migration migration : MIGRATIONS) {
+                if (migration.version > oldVersion && migration.version <= newVersion) {
+                    if (DEVELOPER_MODE) {
+                        Log.i(TAG, "Migrating database to version " + migration.version);
+                    }
+                    migration.apply(db);
+                }
+            }
+            
+            // Frequent queries refer to the latest schema.
+            if (DEVELOPER_MODE && newVersion == DATABASE_VERSION) {
+                explainQueryPlans(db);
+            }
+        }
+        
+        /**
+         * Copy events from a version 3 table, where identifiers are stored as
+         * text, to a new table where identifiers are stored as blobs.
+         */
+        private static void migrateToBinaryIds(SQLiteDatabase db) {
+            final String oldTable = EVENTS_TABLE + "_v3";
+            db.execSQL("ALTER TABLE " + EVENTS_TABLE + " RENAME TO " + oldTable);
+            db.execSQL("CREATE TABLE " + EVENTS_TABLE + " (" + ROW_ID + " INTEGER PRIMARY KEY, "
+                    + EventIds.UUID_COLUMN + " BLOB NOT NULL UNIQUE, " + DEVICE_ID + " TEXT, "
+                    + CREATED + " LONG, " + TYPE + " INT, " + NUMBER + " TEXT, " + NAME
+                    + " TEXT, " + MESSAGE + " TEXT, " + STATE + " INT);");
+            
+            final String columns = DEVICE_ID + ", " + CREATED + ", " + TYPE + ", " + NUMBER
+                    + ", " + NAME + ", " + MESSAGE + ", " + STATE;
+            final SQLiteStatement insert = db.compileStatement("INSERT INTO " + EVENTS_TABLE
+                    + " (" + EventIds.UUID_COLUMN + ", " + columns + ") VALUES (?,?,?,?,?,?,?,?)");
+            final Cursor c = db.rawQuery("SELECT " + _ID + ", " + columns + " FROM " + oldTable,
+                null);
+            try {
+                final int numColumns = c.getColumnCount();
+                while (c.moveToNext()) {
+                    final String eventId = c.getString(0);
+                    try {
+                        insert.bindBlob(1, EventIds.toBytes(eventId));
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "Dropping event with invalid identifier: " + eventId);
+                        continue;
+                    }
+                    for (int i = 1; i < numColumns; ++i) {
+                        if (c.isNull(i)) {
+                            insert.bindNull(i + 1);
+                        } else {
+                            // Column affinity converts numbers back.
+                            insert.bindString(i + 1, c.getString(i));
+                        }
+                    }
+                    insert.executeInsert();
+                }
+            } finally {
+                c.close();
+                insert.close();
+            }
+            
+            // Indexes are dropped with the old table.
+            db.execSQL("DROP TABLE " + oldTable);
+            for (final String indexCreate : V3_INDEXES_CREATE) {
+                db.execSQL(indexCreate);
+            }
+        }
+        
+        private static void createFullTextIndex(SQLiteDatabase db) {
+            for (final String ftsCreate : FTS_CREATE) {
+                if (DEVELOPER_MODE) {
+                    Log.i(TAG, "Creating full-text index: " + ftsCreate);
+                }
+                db.execSQL(ftsCreate);
+            }
+        }
+        
+        /**
+         * Get the SQL expression of the outbox operation for an event state.
+         */
+        private static String toOperationSql(String state) {
+            return "(CASE " + state + " WHEN " + EventsContract.PENDING_UPLOAD_STATE + " THEN "
+                    + EventsContract.UPLOAD_OPERATION + " ELSE "
+                    + EventsContract.DELETE_OPERATION + " END)";
+        }
+        
+        /**
+         * Get the SQL expression of the outbox availability for an event row:
+         * an upload waits for its next attempt.
+         * @param prefix table prefix of the event columns
+         */
+        private static String toAvailableSql(String prefix) {
+            return "(CASE " + prefix + STATE + " WHEN " + EventsContract.PENDING_UPLOAD_STATE
+                    + " THEN ifnull(" + prefix + NEXT_ATTEMPT + ", 0) ELSE 0 END)";
         }
+        
+        /**
+         * Get the statement which appends the operation for a new event
+         * state, in a trigger.
+         */
+        private static String outboxInsertSql() {
+            return "INSERT INTO " + OUTBOX_TABLE + " (" + OUTBOX_COLUMNS + ") VALUES ("
+                    + toOperationSql("new." + STATE) + ", new." + EventIds.UUID_COLUMN + ", "
+                    + toAvailableSql("new.") + ", " + OUTBOX_NOW_SQL + ");";
+        }
+        
+        private static void createOutbox(SQLiteDatabase db) {
+            for (final String outboxCreate : OUTBOX_CREATE) {
+                if (DEVELOPER_MODE) {
+                    Log.i(TAG, "Creating outbox: " + outboxCreate);
+                }
+                db.execSQL(outboxCreate);
+            }
+        }
+        
+        private static void createIndexes(SQLiteDatabase db) {
+            for (final String indexCreate : INDEXES_CREATE) {
+                if (DEVELOPER_MODE) {
+                    Log.i(TAG, "Creating index: " + indexCreate);
+                }
+                db.execSQL(indexCreate);
+            }
+        }
+        
+        /**
+         * Log query plans for frequent queries, in order to check that indexes
+         * are used. Plans are logged once for each schema version, when the
+         * database is created or upgraded.
+         */
+        private static void explainQueryPlans(SQLiteDatabase db) {
+            for (final String query : HOT_QUERIES) {
+                final StringBuilder plan = new StringBuilder();
+                final Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+                try {
+                    final int detailIdx = c.getColumnCount() - 1;
+                    while (c.moveToNext()) {
+                        plan.append(plan.length() == 0 ? "" : "; ").append(c.getString(detailIdx));
+                    }
+                } finally {
+                    c.close();
+                }
+                Log.d(TAG, "Query plan for \"" + query + "\": " + plan);
+            }
+        }
+    }
+    
+    /**
+     * Database schema migration from the previous version.
+     * @author Pixmob
+     */
+    private static abstract class Migration {
+        /**
+         * Database version after this migration.
+         */
+        public final int version;
+        
+        public Migration(final int version) {
+            this.version = version;
+        }
+        
+        /**
+         * Upgrade the database schema, keeping existing data.
+         */
+        public abstract void apply(SQLiteDatabase db);
     }
 }
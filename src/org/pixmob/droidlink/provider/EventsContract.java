@@ -15,26 +15,11 @@
  */
 package org.pixmob.droidlink.provider;
 
-import static org.pixmob.droidlink.Constants.GOOGLE_ACCOUNT;
-import static org.pixmob.droidlink.Constants.SHARED_PREFERENCES_FILE;
-import static org.pixmob.droidlink.Constants.SP_KEY_ACCOUNT;
-import static org.pixmob.droidlink.Constants.TAG;
+import java.util.Collection;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import android.accounts.Account;
 import android.content.ContentResolver;
-import android.content.Context;
-import android.content.SharedPreferences;
 import android.net.Uri;
-import android.os.Bundle;
 import android.provider.BaseColumns;
-import android.util.Log;
 
 /**
  * The contract between the Events provider and applications.
@@ -44,33 +29,91 @@ public class EventsContract {
     public static final String AUTHORITY = "org.pixmob.droidlink";
     public static final Uri CONTENT_URI = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
             .authority(AUTHORITY).appendPath("events").build();
+    /**
+     * Uri for searching events.
+     * @see #getSearchUri(String)
+     */
+    public static final Uri SEARCH_URI = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+            .authority(AUTHORITY).appendPath("search").build();
+    /**
+     * Uri for events with a pending remote operation, in the order the
+     * operations were requested. This Uri is read-only: an operation is
+     * requested or completed when the state of an event is updated.
+     * @see Outbox
+     */
+    public static final Uri OUTBOX_URI = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+            .authority(AUTHORITY).appendPath("outbox").build();
     
     public static final int PENDING_UPLOAD_STATE = 0;
     public static final int UPLOADED_STATE = 1;
     public static final int PENDING_DELETE_STATE = 2;
+    /**
+     * State of an event which could not be uploaded after several attempts.
+     * This event is kept in the local database, but it is not sent again.
+     * @see Event#ATTEMPTS
+     */
+    public static final int FAILED_STATE = 3;
     
-    private static final ThreadPoolExecutor SYNC_EXECUTOR = new ThreadPoolExecutor(0, 1, 60,
-            TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(2), new ThreadFactory() {
-                @Override
-                public Thread newThread(Runnable r) {
-                    return new Thread(r, "DroidLink/Sync");
-                }
-            });
-    static {
-        SYNC_EXECUTOR.allowCoreThreadTimeOut(true);
-    }
+    /**
+     * Outbox operation for an event to upload.
+     * @see Outbox#OPERATION
+     */
+    public static final int UPLOAD_OPERATION = 1;
+    /**
+     * Outbox operation for an event to delete on the remote server.
+     * @see Outbox#OPERATION
+     */
+    public static final int DELETE_OPERATION = 2;
+    
+    /**
+     * Uri parameter for the maximum number of events in a page. Pages are
+     * sorted by creation time, from the most recent event. This parameter is
+     * also used for the outbox, which is sorted by sequence.
+     * @see #getPageUri(int, long, String)
+     * @see #getOutboxUri(int)
+     */
+    public static final String PARAM_LIMIT = "limit";
+    /**
+     * Uri parameter for the creation time of the last event in the previous
+     * page.
+     */
+    public static final String PARAM_BEFORE_CREATED = "beforeCreated";
+    /**
+     * Uri parameter for the identifier of the last event in the previous
+     * page.
+     */
+    public static final String PARAM_BEFORE_ID = "beforeId";
+    /**
+     * Uri parameter for the words to search.
+     * @see #getSearchUri(String)
+     */
+    public static final String PARAM_QUERY = "q";
     
     /**
      * Synchronization token. This key is set from the request sent by the
      * server to uniquely identify synchronization requests across devices.
+     * When several requests are merged, their tokens are joined with
+     * {@link #SYNC_TOKEN_SEPARATOR}.
      */
     public static final String SYNC_TOKEN = "syncToken";
+    /**
+     * Separator between synchronization tokens.
+     * @see #SYNC_TOKEN
+     */
+    public static final String SYNC_TOKEN_SEPARATOR = ",";
     /**
      * Synchronization strategy: light or full. Set this key when calling
      * <code>ContentResolver.requestSync</code> to specify how the
      * synchronization should be done.
      */
     public static final String SYNC_STRATEGY = "syncStrategy";
+    /**
+     * Synchronization strategy of the requests without a synchronization
+     * token, when requests with and without a token were merged. This
+     * strategy is used if the synchronization tokens were already consumed.
+     * @see #SYNC_TOKEN
+     */
+    public static final String UNTOKENED_SYNC_STRATEGY = "untokenedSyncStrategy";
     /**
      * Perform a "full" synchronization: remote events are synchronized.
      * @see #SYNC_STRATEGY
@@ -92,23 +135,63 @@ public class EventsContract {
     public static final int RECEIVED_SMS_TYPE = 1;
     
     /**
-     * Synchronize events for an account.
-     */
-    public static void sync(Context context, int syncType, String syncToken) {
-        final SharedPreferences prefs = context.getSharedPreferences(SHARED_PREFERENCES_FILE,
-            Context.MODE_PRIVATE);
-        final String account = prefs.getString(SP_KEY_ACCOUNT, null);
-        if (account == null) {
-            Log.w(TAG, "No account set: cannot sync");
-            return;
-        }
-        if (syncType != FULL_SYNC && syncType != LIGHT_SYNC) {
-            throw new IllegalArgumentException("Invalid sync type: " + syncType);
-        }
-        
-        // Start event synchronization in a thread to avoid disk writes in the
-        // main thread.
-        SYNC_EXECUTOR.execute(new EventsRefresher(account, syncType, syncToken));
+     * Create a selection matching events by identifier. This selection must be
+     * used instead of a selection on {@link Event#_ID}, which cannot use the
+     * identifier index. Invalid identifiers are ignored.
+     */
+    public static String createEventIdSelection(Collection<String> eventIds) {
+        return EventIds.createSelection(eventIds);
+    }
+    
+    /**
+     * Get the form of an event identifier returned by this provider, so that
+     * identifiers can be compared as strings.
+     * @return the normalized identifier, or <code>null</code> if the
+     *         identifier is invalid
+     */
+    public static String normalizeEventId(String eventId) {
+        return EventIds.normalize(eventId);
+    }
+    
+    /**
+     * Get the Uri for the first operations of the outbox.
+     * @param limit maximum number of operations
+     * @see Outbox#SEQUENCE
+     */
+    public static Uri getOutboxUri(int limit) {
+        return OUTBOX_URI.buildUpon().appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .build();
+    }
+    
+    /**
+     * Get the Uri for searching events. Events are returned if their name,
+     * number or message contain words starting with every word of the query.
+     */
+    public static Uri getSearchUri(String query) {
+        return SEARCH_URI.buildUpon().appendQueryParameter(PARAM_QUERY, query).build();
+    }
+    
+    /**
+     * Get the Uri for the first page of events.
+     * @param limit maximum number of events in the page
+     */
+    public static Uri getPageUri(int limit) {
+        return CONTENT_URI.buildUpon().appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .build();
+    }
+    
+    /**
+     * Get the Uri for the page following an event. A page is read without
+     * reading the previous pages, so that events can be read page by page
+     * with a constant memory usage.
+     * @param limit maximum number of events in the page
+     * @param lastCreated creation time of the last event in the previous page
+     * @param lastEventId identifier of the last event in the previous page
+     */
+    public static Uri getPageUri(int limit, long lastCreated, String lastEventId) {
+        return CONTENT_URI.buildUpon().appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .appendQueryParameter(PARAM_BEFORE_CREATED, String.valueOf(lastCreated))
+                .appendQueryParameter(PARAM_BEFORE_ID, lastEventId).build();
     }
     
     /**
@@ -136,38 +219,47 @@ public class EventsContract {
         public static final String NAME = "name";
         public static final String MESSAGE = "message";
         public static final String STATE = "state";
+        /**
+         * Number of failed upload attempts.
+         */
+        public static final String ATTEMPTS = "attempts";
+        /**
+         * Time of the next upload attempt, after an upload failed.
+         */
+        public static final String NEXT_ATTEMPT = "nextattempt";
+        /**
+         * Time when the event was uploaded by this device.
+         */
+        public static final String UPLOADED = "uploaded";
     }
     
     /**
-     * Internal task for refreshing events.
+     * Column constants for the outbox. Rows from {@link #OUTBOX_URI} also
+     * contain the columns of the Events table.
      * @author Pixmob
      */
-    private static class EventsRefresher implements Runnable {
-        private final Logger logger = Logger.getLogger(getClass().getName());
-        private final String account;
-        private final int syncType;
-        private final String syncToken;
-        
-        public EventsRefresher(final String account, final int syncType, final String syncToken) {
-            this.account = account;
-            this.syncType = syncType;
-            this.syncToken = syncToken;
-        }
-        
-        @Override
-        public void run() {
-            try {
-                final Bundle options = new Bundle();
-                options.putInt(EventsContract.SYNC_STRATEGY, syncType);
-                options.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-                if (syncToken != null) {
-                    options.putString(EventsContract.SYNC_TOKEN, syncToken);
-                }
-                ContentResolver.requestSync(new Account(account, GOOGLE_ACCOUNT),
-                    EventsContract.AUTHORITY, options);
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Failed to sync events", e);
-            }
-        }
+    public static class Outbox {
+        /**
+         * Position of the operation in the outbox: operations are returned in
+         * this order. Operations keep their position until they are removed,
+         * so that the outbox can be read page by page with a selection on
+         * this column.
+         */
+        public static final String SEQUENCE = "seq";
+        /**
+         * Pending operation: {@link EventsContract#UPLOAD_OPERATION} or
+         * {@link EventsContract#DELETE_OPERATION}.
+         */
+        public static final String OPERATION = "op";
+        /**
+         * Time when the operation was requested.
+         */
+        public static final String ENQUEUED = "enqueued";
+        /**
+         * Time from which the operation can be run. An upload which failed is
+         * not available until its next attempt.
+         * @see Event#NEXT_ATTEMPT
+         */
+        public static final String AVAILABLE = "available";
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.provider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pixmob.droidlink.feature.Features;
+import org.pixmob.droidlink.feature.SQLiteStatementFeature;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Cache for compiled SQL statements. Statements are compiled once, and then
+ * executed with new arguments: SQLite does not have to parse the statement
+ * again. A compiled statement holds its arguments: a statement is taken out
+ * of the cache while it is used, and a thread which needs the same statement
+ * at the same time compiles its own copy.
+ * <p>
+ * The cache lock is never held while SQLite is called: a thread inside a
+ * database transaction must not wait for a thread which waits for the
+ * database.
+ * </p>
+ * @author Pixmob
+ */
+class StatementCache {
+    /**
+     * Maximum number of cached statements.
+     */
+    private static final int MAX_STATEMENTS = 16;
+    private final Map<String, SQLiteStatement> cache = new LinkedHashMap<String, SQLiteStatement>(
+            MAX_STATEMENTS, 0.75f, true);
+    private SQLiteDatabase db;
+    
+    /**
+     * Execute an INSERT statement.
+     * @return the row identifier of the inserted row, or <code>-1</code> if
+     *         the row could not be inserted
+     */
+    public long executeInsert(SQLiteDatabase db, String sql, Object[] bindArgs) {
+        final SQLiteStatement statement = acquire(db, sql);
+        try {
+            bind(statement, bindArgs);
+            return statement.executeInsert();
+        } finally {
+            statement.clearBindings();
+            release(db, sql, statement);
+        }
+    }
+    
+    /**
+     * Execute an UPDATE or DELETE statement.
+     * @return the number of affected rows
+     */
+    public int executeUpdateDelete(SQLiteDatabase db, String sql, Object[] bindArgs) {
+        final SQLiteStatement statement = acquire(db, sql);
+        try {
+            bind(statement, bindArgs);
+            return Features.getFeature(SQLiteStatementFeature.class).executeUpdateDelete(db,
+                statement);
+        } finally {
+            statement.clearBindings();
+            release(db, sql, statement);
+        }
+    }
+    
+    private SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        final SQLiteStatement statement;
+        List<SQLiteStatement> staleStatements = null;
+        synchronized (this) {
+            if (db != this.db) {
+                // Compiled statements belong to a database instance.
+                staleStatements = removeAll();
+                this.db = db;
+            }
+            statement = cache.remove(sql);
+        }
+        closeAll(staleStatements);
+        
+        if (statement != null) {
+            return statement;
+        }
+        return db.compileStatement(sql);
+    }
+    
+    private void release(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        SQLiteStatement unusedStatement = statement;
+        synchronized (this) {
+            if (db == this.db && !cache.containsKey(sql)) {
+                if (cache.size() >= MAX_STATEMENTS) {
+                    // Evict the least recently used statement.
+                    final Iterator<SQLiteStatement> i = cache.values().iterator();
+                    unusedStatement = i.next();
+                    i.remove();
+                } else {
+                    unusedStatement = null;
+                }
+                cache.put(sql, statement);
+            }
+        }
+        if (unusedStatement != null) {
+            unusedStatement.close();
+        }
+    }
+    
+    private static void bind(SQLiteStatement statement, Object[] bindArgs) {
+        for (int i = 0; i < bindArgs.length; ++i) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+        }
+    }
+    
+    private List<SQLiteStatement> removeAll() {
+        final List<SQLiteStatement> statements = new ArrayList<SQLiteStatement>(cache.values());
+        cache.clear();
+        return statements;
+    }
+    
+    private static void closeAll(List<SQLiteStatement> statements) {
+        if (statements != null) {
+            for (final SQLiteStatement statement : statements) {
+                statement.close();
+            }
+        }
+    }
+    
+    /**
+     * Close every cached statement. Statements being executed are closed
+     * when they are released.
+     */
+    public void close() {
+        final List<SQLiteStatement> statements;
+        synchronized (this) {
+            statements = removeAll();
+            db = null;
+        }
+        closeAll(statements);
+    }
+}
@@ -24,6 +24,7 @@ import static org.pixmob.droidlink.provider.EventsContract.Event.STATE;
 import org.pixmob.actionservice.ActionExecutionFailedException;
 import org.pixmob.actionservice.ActionService;
 import org.pixmob.droidlink.provider.EventsContract;
+import org.pixmob.droidlink.sync.SyncScheduler;
 
 import android.content.ContentValues;
 import android.content.Intent;
@@ -68,6 +69,6 @@ public class EventPurgeService extends ActionService {
             new String[] { String.valueOf(maxCreated) });
         
         // Start event synchronization.
-        EventsContract.sync(this, EventsContract.LIGHT_SYNC, null);
+        SyncScheduler.getInstance().schedule(this, EventsContract.LIGHT_SYNC, null);
     }
 }
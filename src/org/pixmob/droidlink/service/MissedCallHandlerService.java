@@ -31,6 +31,7 @@ import java.util.Date;
 import org.pixmob.actionservice.ActionExecutionFailedException;
 import org.pixmob.actionservice.ActionService;
 import org.pixmob.droidlink.provider.EventsContract;
+import org.pixmob.droidlink.sync.SyncScheduler;
 import org.pixmob.droidlink.util.PhoneUtils;
 
 import android.content.ContentValues;
@@ -92,7 +93,8 @@ public class MissedCallHandlerService extends ActionService {
                         writeMissedCallEvent(fromNumber, fromName, callTime);
                         
                         // Start synchronization.
-                        EventsContract.sync(this, EventsContract.LIGHT_SYNC, null);
+                        SyncScheduler.getInstance().schedule(this, EventsContract.LIGHT_SYNC,
+                            null);
                     } else {
                         if (DEVELOPER_MODE) {
                             Log.w(TAG, "Missed call not found!");
@@ -30,6 +30,7 @@ import static org.pixmob.droidlink.provider.EventsContract.Event.TYPE;
 import org.pixmob.actionservice.ActionExecutionFailedException;
 import org.pixmob.actionservice.ActionService;
 import org.pixmob.droidlink.provider.EventsContract;
+import org.pixmob.droidlink.sync.SyncScheduler;
 import org.pixmob.droidlink.util.PhoneUtils;
 
 import android.content.ContentValues;
@@ -73,9 +74,17 @@ public class SmsHandlerService extends ActionService {
             return;
         }
         
+        final String deviceId = prefs.getString(SP_KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            Log.wtf(TAG, "No device id set");
+            return;
+        }
+        
         final String[] contactProjection = { ContactsContract.PhoneLookup.DISPLAY_NAME };
+        final ContentValues[] events = new ContentValues[pdus.length];
         
-        for (final Object pdu : pdus) {
+        for (int i = 0; i < pdus.length; ++i) {
+            final Object pdu = pdus[i];
             // Parse the message from the raw value (PDU).
             final SmsMessage message = SmsMessage.createFromPdu((byte[]) pdu);
             final String fromAddress = PhoneUtils.getPhoneNumber(message.getOriginatingAddress());
@@ -100,23 +109,24 @@ public class SmsHandlerService extends ActionService {
             
             Log.i(TAG, "Got SMS: number=" + fromAddress + ", name=" + fromDisplayName + ", time="
                     + message.getTimestampMillis());
-            writeSmsEvent(fromAddress, fromDisplayName, message.getMessageBody(), message
-                    .getTimestampMillis());
+            events[i] = createSmsEvent(deviceId, fromAddress, fromDisplayName, message
+                    .getMessageBody(), message.getTimestampMillis());
         }
         
         if (pdus.length != 0) {
+            // Messages are written in a single transaction.
+            final int count = getContentResolver().bulkInsert(EventsContract.CONTENT_URI, events);
+            if (DEVELOPER_MODE) {
+                Log.i(TAG, count + " new event(s) created for SMS");
+            }
+            
             // Start synchronization.
-            EventsContract.sync(this, EventsContract.LIGHT_SYNC, null);
+            SyncScheduler.getInstance().schedule(this, EventsContract.LIGHT_SYNC, null);
         }
     }
     
-    private void writeSmsEvent(String number, String name, String message, long date) {
-        final String deviceId = prefs.getString(SP_KEY_DEVICE_ID, null);
-        if (deviceId == null) {
-            Log.wtf(TAG, "No device id set");
-            return;
-        }
-        
+    private static ContentValues createSmsEvent(String deviceId, String number, String name,
+            String message, long date) {
         final ContentValues cv = new ContentValues();
         cv.put(DEVICE_ID, deviceId);
         cv.put(CREATED, date);
@@ -124,10 +134,6 @@ public class SmsHandlerService extends ActionService {
         cv.put(NAME, name);
         cv.put(MESSAGE, message);
         cv.put(TYPE, EventsContract.RECEIVED_SMS_TYPE);
-        
-        final Uri uri = getContentResolver().insert(EventsContract.CONTENT_URI, cv);
-        if (DEVELOPER_MODE) {
-            Log.i(TAG, "New event created for SMS: " + uri);
-        }
+        return cv;
     }
 }
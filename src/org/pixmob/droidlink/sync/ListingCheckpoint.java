@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.sync;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+
+import org.pixmob.droidlink.feature.Features;
+import org.pixmob.droidlink.feature.SharedPreferencesSaverFeature;
+import org.pixmob.droidlink.net.CacheValidator;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Progress of a full event listing. The listing is saved after each page, so
+ * that an interrupted listing is resumed from the next page on the next
+ * synchronization. Identifiers of the events which were received are kept in
+ * a private file, since they are required to find events deleted on the remote
+ * server once the listing is done.
+ * <p>
+ * The listing start time is saved with the checkpoint. Events uploaded after
+ * this time may be missing from the pages which were already received: they
+ * must not be considered as deleted on the remote server. A checkpoint older
+ * than {@link #MAX_AGE} is not resumed.
+ * </p>
+ * @author Pixmob
+ */
+class ListingCheckpoint {
+    /**
+     * Maximum age of a checkpoint (in milliseconds).
+     */
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+    private static final String SP_KEY_PAGE_TOKEN = "listingPageToken";
+    private static final String SP_KEY_START_TIME = "listingStartTime";
+    private static final String SP_KEY_SYNC_CURSOR = "listingSyncCursor";
+    private static final String SP_KEY_ETAG = "listingETag";
+    private static final String SP_KEY_LAST_MODIFIED = "listingLastModified";
+    private static final String EVENT_IDS_FILE = "listing_event_ids";
+    private static final String EVENT_IDS_CHARSET = "UTF-8";
+    private final Context context;
+    private final SharedPreferences prefs;
+    
+    public ListingCheckpoint(final Context context, final SharedPreferences prefs) {
+        this.context = context;
+        this.prefs = prefs;
+    }
+    
+    /**
+     * Get the continuation token of the next page to fetch.
+     * @return continuation token, or <code>null</code> if there is no listing
+     *         to resume
+     */
+    public String getPageToken() {
+        return prefs.getString(SP_KEY_PAGE_TOKEN, null);
+    }
+    
+    /**
+     * Get the time when the listing started.
+     */
+    public long getStartTime() {
+        return prefs.getLong(SP_KEY_START_TIME, 0);
+    }
+    
+    /**
+     * Check if the listing is too old to be resumed. A listing is also
+     * expired if it started after the current time, as the clock was changed.
+     */
+    public boolean isExpired() {
+        final long age = System.currentTimeMillis() - getStartTime();
+        return age < 0 || age > MAX_AGE;
+    }
+    
+    /**
+     * Get the change cursor which was received before the listing started.
+     */
+    public String getSyncCursor() {
+        return prefs.getString(SP_KEY_SYNC_CURSOR, null);
+    }
+    
+    /**
+     * Get the validator which was received with the first page.
+     */
+    public CacheValidator getValidator() {
+        return new CacheValidator(prefs.getString(SP_KEY_ETAG, null), prefs.getString(
+            SP_KEY_LAST_MODIFIED, null));
+    }
+    
+    /**
+     * Read identifiers of the events received before the listing was
+     * interrupted.
+     */
+    public void readEventIds(Collection<String> eventIds) throws IOException {
+        final BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(context.openFileInput(EVENT_IDS_FILE),
+                    EVENT_IDS_CHARSET));
+        } catch (FileNotFoundException e) {
+            // No event was received.
+            return;
+        }
+        try {
+            for (String eventId; (eventId = in.readLine()) != null;) {
+                if (eventId.length() != 0) {
+                    eventIds.add(eventId);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Save the listing after a page was written to the local database.
+     * @param startTime time when the listing started
+     * @param pageEventIds identifiers of the events received with this page
+     * @param nextPageToken continuation token of the next page
+     */
+    public void save(long startTime, String syncCursor, CacheValidator validator,
+            Collection<String> pageEventIds, String nextPageToken) throws IOException {
+        // Event identifiers are written before the continuation token: if the
+        // token is not saved, this page is fetched again.
+        if (!pageEventIds.isEmpty()) {
+            final Writer out = new OutputStreamWriter(context.openFileOutput(EVENT_IDS_FILE,
+                Context.MODE_PRIVATE | Context.MODE_APPEND), EVENT_IDS_CHARSET);
+            try {
+                for (final String eventId : pageEventIds) {
+                    out.write(eventId);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        }
+        
+        final SharedPreferences.Editor prefsEditor = prefs.edit();
+        prefsEditor.putString(SP_KEY_PAGE_TOKEN, nextPageToken);
+        prefsEditor.putLong(SP_KEY_START_TIME, startTime);
+        prefsEditor.putString(SP_KEY_SYNC_CURSOR, syncCursor);
+        prefsEditor.putString(SP_KEY_ETAG, validator != null ? validator.getETag() : null);
+        prefsEditor.putString(SP_KEY_LAST_MODIFIED, validator != null ? validator
+                .getLastModified() : null);
+        Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
+    }
+    
+    /**
+     * Forget the listing: the next listing starts from the first page.
+     */
+    public void clear() {
+        context.deleteFile(EVENT_IDS_FILE);
+        if (prefs.contains(SP_KEY_PAGE_TOKEN)) {
+            final SharedPreferences.Editor prefsEditor = prefs.edit();
+            prefsEditor.remove(SP_KEY_PAGE_TOKEN);
+            prefsEditor.remove(SP_KEY_START_TIME);
+            prefsEditor.remove(SP_KEY_SYNC_CURSOR);
+            prefsEditor.remove(SP_KEY_ETAG);
+            prefsEditor.remove(SP_KEY_LAST_MODIFIED);
+            Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
+        }
+    }
+}
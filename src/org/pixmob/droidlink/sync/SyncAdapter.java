@@ -18,6 +18,8 @@ package org.pixmob.droidlink.sync;
 import static android.provider.BaseColumns._ID;
 import static org.pixmob.droidlink.Constants.ACTION_NEW_EVENT;
 import static org.pixmob.droidlink.Constants.ACTION_SYNC;
+import static org.pixmob.droidlink.Constants.DEFAULT_UPLOAD_BATCH_SIZE;
+import static org.pixmob.droidlink.Constants.DEFAULT_UPLOAD_CONCURRENCY;
 import static org.pixmob.droidlink.Constants.DEVELOPER_MODE;
 import static org.pixmob.droidlink.Constants.EXTRA_EVENT_COUNT;
 import static org.pixmob.droidlink.Constants.EXTRA_EVENT_ID;
@@ -25,22 +27,38 @@ import static org.pixmob.droidlink.Constants.EXTRA_FORCE_UPLOAD;
 import static org.pixmob.droidlink.Constants.EXTRA_RUNNING;
 import static org.pixmob.droidlink.Constants.SHARED_PREFERENCES_FILE;
 import static org.pixmob.droidlink.Constants.SP_KEY_ACCOUNT;
+import static org.pixmob.droidlink.Constants.SP_KEY_UPLOAD_BATCH_SIZE;
+import static org.pixmob.droidlink.Constants.SP_KEY_UPLOAD_CONCURRENCY;
 import static org.pixmob.droidlink.Constants.TAG;
+import static org.pixmob.droidlink.provider.EventsContract.Event.ATTEMPTS;
 import static org.pixmob.droidlink.provider.EventsContract.Event.CREATED;
 import static org.pixmob.droidlink.provider.EventsContract.Event.DEVICE_ID;
 import static org.pixmob.droidlink.provider.EventsContract.Event.MESSAGE;
 import static org.pixmob.droidlink.provider.EventsContract.Event.NAME;
+import static org.pixmob.droidlink.provider.EventsContract.Event.NEXT_ATTEMPT;
 import static org.pixmob.droidlink.provider.EventsContract.Event.NUMBER;
 import static org.pixmob.droidlink.provider.EventsContract.Event.STATE;
 import static org.pixmob.droidlink.provider.EventsContract.Event.TYPE;
+import static org.pixmob.droidlink.provider.EventsContract.Event.UPLOADED;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.AVAILABLE;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.OPERATION;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.SEQUENCE;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -48,6 +66,9 @@ import org.json.JSONObject;
 import org.pixmob.appengine.client.AppEngineAuthenticationException;
 import org.pixmob.droidlink.feature.Features;
 import org.pixmob.droidlink.feature.SharedPreferencesSaverFeature;
+import org.pixmob.droidlink.net.CacheValidator;
+import org.pixmob.droidlink.net.JsonStreamEntity;
+import org.pixmob.droidlink.net.JsonStreamHandler;
 import org.pixmob.droidlink.net.NetworkClient;
 import org.pixmob.droidlink.net.NetworkClientException;
 import org.pixmob.droidlink.provider.EventsContract;
@@ -60,6 +81,7 @@ import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncResult;
 import android.database.Cursor;
@@ -74,10 +96,52 @@ import android.util.Log;
  * @author Pixmob
  */
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
-    private static final String[] PROJECTION = { _ID, TYPE, CREATED, NUMBER, NAME, MESSAGE, STATE };
+    private static final String[] PROJECTION = { _ID, TYPE, CREATED, NUMBER, NAME, MESSAGE,
+            STATE, SEQUENCE };
     private static final String[] PROJECTION_ID = { _ID };
+    private static final String[] PROJECTION_ATTEMPTS = { _ID, ATTEMPTS };
     private static final String SP_KEY_LAST_SYNC = "lastSync";
     private static final String SP_KEY_SYNC_TOKEN = "syncToken";
+    private static final String SP_KEY_SYNC_CURSOR = "syncCursor";
+    private static final String SP_KEY_EVENTS_ETAG = "eventsETag";
+    private static final String SP_KEY_EVENTS_LAST_MODIFIED = "eventsLastModified";
+    private static final String SP_KEY_DEVICE_SYNC_PENDING = "deviceSyncPending";
+    /**
+     * Maximum number of event identifiers in a single selection or request.
+     */
+    private static final int MAX_EVENT_IDS = 500;
+    /**
+     * Number of remote events written to the local database in a single
+     * transaction.
+     */
+    private static final int WRITE_BATCH_SIZE = 100;
+    /**
+     * Maximum number of events in a page of the remote event listing. Each
+     * page is written to the local database in a single transaction.
+     */
+    private static final int LISTING_PAGE_SIZE = WRITE_BATCH_SIZE;
+    /**
+     * Maximum number of upload attempts for an event rejected by the remote
+     * server. The event state is then set to
+     * {@link EventsContract#FAILED_STATE}.
+     */
+    private static final int MAX_UPLOAD_ATTEMPTS = 8;
+    /**
+     * Maximum delay before the first upload attempt after an event was
+     * rejected (in milliseconds).
+     */
+    private static final long INITIAL_RETRY_DELAY = 60 * 1000;
+    /**
+     * Maximum delay between two upload attempts (in milliseconds).
+     */
+    private static final long MAX_RETRY_DELAY = 6 * 60 * 60 * 1000;
+    private static final Random RETRY_RANDOM = new Random();
+    private static final ThreadFactory UPLOAD_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "DroidLink/Upload");
+        }
+    };
     
     public SyncAdapter(final Context context) {
         super(context, false);
@@ -90,6 +154,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             doPerformSync(account, extras, authority, provider, syncResult);
         } catch (Exception e) {
             Log.e(TAG, "Synchronization error", e);
+        } finally {
+            SyncScheduler.getInstance().onSyncFinished(account.name);
         }
     }
     
@@ -104,9 +170,15 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             Log.d(TAG, "Sync token: " + syncToken + "; last sync token: " + lastSyncToken);
         }
         
-        if (lastSyncToken != null && lastSyncToken.equals(syncToken)) {
-            Log.w(TAG, "Skip synchronization since this device is already synchronized");
-            return;
+        int syncStrategy = extras.getInt(EventsContract.SYNC_STRATEGY, EventsContract.FULL_SYNC);
+        if (isSyncTokenConsumed(syncToken, lastSyncToken)) {
+            // Requests without a token may have been merged with this
+            // request: run them anyway.
+            syncStrategy = extras.getInt(EventsContract.UNTOKENED_SYNC_STRATEGY, 0);
+            if (syncStrategy == 0) {
+                Log.w(TAG, "Skip synchronization since this device is already synchronized");
+                return;
+            }
         }
         
         // Make sure this sync is about our user.
@@ -118,14 +190,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             return;
         }
         
-        // Check if a synchronization was just made: do not run twice.
-        final long lastSync = prefs.getLong(SP_KEY_LAST_SYNC, 0);
-        if (System.currentTimeMillis() - lastSync < 1000) {
-            Log.w(TAG, "Skip synchronization for user account " + account.name
-                    + " since it has just ran");
-            return;
-        }
-        
         // Check if a network client can be created
         // (a device identifier is required).
         final NetworkClient client = NetworkClient.newInstance(getContext());
@@ -137,8 +201,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         
         Log.i(TAG, "Start synchronization for user " + accountName);
         
-        final boolean fullSync = extras.getInt(EventsContract.SYNC_STRATEGY,
-            EventsContract.FULL_SYNC) == EventsContract.FULL_SYNC;
+        final boolean fullSync = syncStrategy == EventsContract.FULL_SYNC;
         if (fullSync) {
             Log.i(TAG, "Performing FULL sync");
         } else {
@@ -160,57 +223,27 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             getContext().sendStickyBroadcast(syncIntent);
             
             Log.i(TAG, "Synchronization done for user " + accountName);
+            if (DEVELOPER_MODE) {
+                Log.d(TAG, "Network session stats: " + NetworkClient.getSessionStats());
+                Log.d(TAG, "Sync scheduler stats: " + SyncScheduler.getInstance());
+            }
         }
     }
     
     private void doPerformSync(NetworkClient client, SharedPreferences prefs,
             ContentProviderClient provider, SyncResult syncResult, boolean fullSync) {
-        // Prepare the query.
-        final String selection = DEVICE_ID + "=? AND " + STATE + "=? OR " + STATE + "=?";
-        final String[] selectionArgs = { client.getDeviceId(),
-                String.valueOf(EventsContract.PENDING_UPLOAD_STATE),
-                String.valueOf(EventsContract.PENDING_DELETE_STATE) };
-        
-        // Get local data to sync.
-        final Map<String, JSONObject> eventsToUpload = new HashMap<String, JSONObject>(8);
+        // Get local events to delete. Events to upload are read while they are
+        // being sent.
         final Set<String> eventsToDelete = new HashSet<String>(4);
         Cursor c = null;
         try {
-            c = provider.query(EventsContract.CONTENT_URI, PROJECTION, selection, selectionArgs,
-                null);
+            c = provider.query(EventsContract.OUTBOX_URI, PROJECTION_ID, OPERATION + "=?",
+                new String[] { String.valueOf(EventsContract.DELETE_OPERATION) }, null);
             
             final int idIdx = c.getColumnIndexOrThrow(_ID);
-            final int typeIdx = c.getColumnIndexOrThrow(TYPE);
-            final int createdIdx = c.getColumnIndexOrThrow(CREATED);
-            final int numberIdx = c.getColumnIndexOrThrow(NUMBER);
-            final int nameIdx = c.getColumnIndexOrThrow(NAME);
-            final int messageIdx = c.getColumnIndexOrThrow(MESSAGE);
-            final int stateIdx = c.getColumnIndexOrThrow(STATE);
-            
             while (c.moveToNext()) {
-                final String eventId = c.getString(idIdx);
-                final int eventState = c.getInt(stateIdx);
-                
-                if (EventsContract.PENDING_UPLOAD_STATE == eventState) {
-                    // This is a newly created event.
-                    final JSONObject event = new JSONObject();
-                    try {
-                        event.put("deviceId", client.getDeviceId());
-                        event.put("created", c.getLong(createdIdx));
-                        event.put("type", c.getInt(typeIdx));
-                        event.put("number", c.getString(numberIdx));
-                        event.put("name", c.getString(nameIdx));
-                        event.put("message", c.getString(messageIdx));
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Invalid event " + eventId + ": cannot sync", e);
-                        syncResult.stats.numSkippedEntries++;
-                        continue;
-                    }
-                    eventsToUpload.put(eventId, event);
-                } else if (EventsContract.PENDING_DELETE_STATE == eventState) {
-                    // The user wants this event to be deleted.
-                    eventsToDelete.add(eventId);
-                }
+                // The user wants this event to be deleted.
+                eventsToDelete.add(c.getString(idIdx));
             }
         } catch (RemoteException e) {
             Log.e(TAG, "Failed to get events: cannot sync", e);
@@ -222,10 +255,6 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             }
         }
         
-        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(
-                32);
-        final ContentValues values = new ContentValues(8);
-        
         if (eventsToDelete.isEmpty()) {
             Log.i(TAG, "No events to delete");
         } else {
@@ -233,279 +262,1088 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         }
         
         // Delete events on the remote server.
-        for (final String eventId : eventsToDelete) {
-            if (DEVELOPER_MODE) {
-                Log.d(TAG, "Deleting event: " + eventId);
-            }
+        if (!deleteEvents(client, prefs, provider, eventsToDelete, syncResult)) {
+            return;
+        }
+        
+        if (fullSync && !syncRemoteEvents(client, prefs, provider, syncResult)) {
+            return;
+        }
+        
+        // Send local events to the remote server.
+        final int uploadBatchSize = Math.max(1, prefs.getInt(SP_KEY_UPLOAD_BATCH_SIZE,
+            DEFAULT_UPLOAD_BATCH_SIZE));
+        final int uploadConcurrency = Math.max(1, prefs.getInt(SP_KEY_UPLOAD_CONCURRENCY,
+            DEFAULT_UPLOAD_CONCURRENCY));
+        if (uploadEvents(client, prefs, provider, uploadBatchSize, uploadConcurrency,
+            syncResult) < 0) {
+            return;
+        }
+        
+        // Other devices are notified of the changes acknowledged by the
+        // remote server, including changes sent by an interrupted sync.
+        final SharedPreferences.Editor prefsEditor = prefs.edit();
+        final boolean syncRequired = prefs.getBoolean(SP_KEY_DEVICE_SYNC_PENDING, false);
+        if (syncRequired) {
+            // Generate an unique sync token: the server will send this token to
+            // every devices. If this token is received on this device, the sync
+            // will not start.
+            final String syncToken = UUID.randomUUID().toString();
+            prefsEditor.putString(SP_KEY_SYNC_TOKEN, syncToken);
+            Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
             
+            // Sync user devices.
             try {
-                client.delete("/events/" + eventId);
-                
-                if (DEVELOPER_MODE) {
-                    Log.d(TAG, "Deleting event in local database: " + eventId);
+                final JSONObject data = new JSONObject();
+                data.put("token", syncToken);
+                client.post("/devices/" + client.getDeviceId() + "/sync", data);
+                prefsEditor.putBoolean(SP_KEY_DEVICE_SYNC_PENDING, false);
+            } catch (NetworkClientException e) {
+                if (e.getStatusCode() == 404) {
+                    registerDevice();
+                    prefsEditor.putBoolean(SP_KEY_DEVICE_SYNC_PENDING, false);
+                } else {
+                    Log.w(TAG, "Device sync error: devices will be notified on next sync", e);
                 }
-                batch.add(ContentProviderOperation.newDelete(
-                    Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId)).build());
-                syncResult.stats.numDeletes++;
             } catch (IOException e) {
-                Log.e(TAG, "Event deletion error: cannot sync", e);
+                Log.e(TAG, "Device sync error: cannot sync", e);
                 syncResult.stats.numIoExceptions++;
                 return;
             } catch (AppEngineAuthenticationException e) {
                 Log.e(TAG, "Authentication error: cannot sync", e);
                 syncResult.stats.numAuthExceptions++;
                 return;
+            } catch (JSONException e) {
+                Log.w(TAG, "Invalid sync token " + syncToken + ": cannot sync", e);
+                syncResult.stats.numIoExceptions++;
+                return;
             }
         }
         
-        try {
-            provider.applyBatch(batch);
-        } catch (Exception e) {
-            Log.w(TAG, "Database error: cannot sync", e);
-            syncResult.stats.numIoExceptions++;
-            return;
-        }
-        batch.clear();
+        // Store sync time.
+        prefsEditor.putLong(SP_KEY_LAST_SYNC, System.currentTimeMillis());
+        Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
+    }
+    
+    /**
+     * Delete events on the remote server. Events are deleted in batches: a
+     * single request is sent for each batch, and the events are then removed
+     * from the local database in a single transaction.
+     * @return <code>false</code> if the synchronization must be aborted
+     */
+    private boolean deleteEvents(NetworkClient client, SharedPreferences prefs,
+            ContentProviderClient provider, Set<String> eventsToDelete, SyncResult syncResult) {
+        final List<String> eventIds = new ArrayList<String>(eventsToDelete);
+        final int numEvents = eventIds.size();
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(
+                1);
+        boolean batchDeleteSupported = true;
         
-        if (fullSync) {
-            // Get all events from the remote server.
-            final JSONArray events;
+        for (int start = 0; start < numEvents; start += MAX_EVENT_IDS) {
+            final List<String> batchEventIds = eventIds.subList(start, Math.min(numEvents, start
+                    + MAX_EVENT_IDS));
             if (DEVELOPER_MODE) {
-                Log.d(TAG, "Fetching events from the remote server");
+                Log.d(TAG, "Deleting events: " + batchEventIds);
             }
-            try {
-                events = client.getAsArray("/events");
-            } catch (IOException e) {
-                Log.e(TAG, "Event listing error: cannot sync", e);
-                syncResult.stats.numIoExceptions++;
-                return;
-            } catch (AppEngineAuthenticationException e) {
-                Log.e(TAG, "Authentication error: cannot sync", e);
-                syncResult.stats.numAuthExceptions++;
-                return;
+            
+            boolean deleted = false;
+            if (batchDeleteSupported) {
+                try {
+                    final JSONObject data = new JSONObject();
+                    data.put("ids", new JSONArray(batchEventIds));
+                    client.post("/events/delete", data);
+                    deleted = true;
+                } catch (NetworkClientException e) {
+                    if (e.getStatusCode() == 405 || e.getStatusCode() == 501) {
+                        Log.w(TAG, "Batch deletion is not supported: deleting events one by one");
+                        batchDeleteSupported = false;
+                    } else {
+                        Log.e(TAG, "Event deletion error: cannot sync", e);
+                        syncResult.stats.numIoExceptions++;
+                        return false;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Event deletion error: cannot sync", e);
+                    syncResult.stats.numIoExceptions++;
+                    return false;
+                } catch (AppEngineAuthenticationException e) {
+                    Log.e(TAG, "Authentication error: cannot sync", e);
+                    syncResult.stats.numAuthExceptions++;
+                    return false;
+                } catch (JSONException e) {
+                    Log.e(TAG, "Invalid event identifiers: cannot sync", e);
+                    syncResult.stats.numIoExceptions++;
+                    return false;
+                }
             }
             
-            final int eventsLen = events != null ? events.length() : 0;
-            if (eventsLen == 0) {
-                Log.i(TAG, "No events from the remote server");
-            } else {
-                Log.i(TAG, "Found " + eventsLen + " event(s) from the remote server");
+            int numDeletedEvents = batchEventIds.size();
+            boolean abort = false;
+            if (!deleted) {
+                // Events are deleted one by one, in no particular order: stop
+                // on the first error. The events which were deleted are the
+                // first ones of the list; the others are deleted on the next
+                // synchronization.
+                final int numEventsToDelete = numDeletedEvents;
+                numDeletedEvents = 0;
+                while (numDeletedEvents < numEventsToDelete) {
+                    final String eventId = batchEventIds.get(numDeletedEvents);
+                    try {
+                        client.delete("/events/" + eventId);
+                        ++numDeletedEvents;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Event deletion error: cannot sync", e);
+                        syncResult.stats.numIoExceptions++;
+                        abort = true;
+                        break;
+                    } catch (AppEngineAuthenticationException e) {
+                        Log.e(TAG, "Authentication error: cannot sync", e);
+                        syncResult.stats.numAuthExceptions++;
+                        abort = true;
+                        break;
+                    }
+                }
             }
             
-            // Build a collection with local event identifiers.
-            // This collection will be used to identify which events have
-            // been deleted on the remote server.
-            final Set<String> localEventIds;
-            try {
-                c = provider.query(EventsContract.CONTENT_URI, PROJECTION_ID, STATE + "=?",
-                    new String[] { String.valueOf(EventsContract.UPLOADED_STATE) }, null);
-                localEventIds = new HashSet<String>(c.getCount());
-                
-                final int idIdx = c.getColumnIndexOrThrow(_ID);
-                while (c.moveToNext()) {
-                    final String eventId = c.getString(idIdx);
-                    localEventIds.add(eventId);
+            if (numDeletedEvents != 0) {
+                // Remove the deleted events from the local database with a
+                // single statement.
+                if (DEVELOPER_MODE) {
+                    Log.d(TAG, "Deleting " + numDeletedEvents + " event(s) in local database");
                 }
-            } catch (RemoteException e) {
-                Log.e(TAG, "Failed to get events from local database", e);
-                syncResult.stats.numIoExceptions++;
-                return;
-            } finally {
-                if (c != null) {
-                    c.close();
-                    c = null;
+                batch.add(ContentProviderOperation.newDelete(EventsContract.CONTENT_URI)
+                        .withSelection(
+                            STATE + "=? AND "
+                                    + EventsContract.createEventIdSelection(batchEventIds
+                                            .subList(0, numDeletedEvents)),
+                            new String[] { String.valueOf(EventsContract.PENDING_DELETE_STATE) })
+                        .build());
+                syncResult.stats.numDeletes += numDeletedEvents;
+                
+                setDeviceSyncPending(prefs);
+                try {
+                    provider.applyBatch(batch);
+                } catch (Exception e) {
+                    Log.w(TAG, "Database error: cannot sync", e);
+                    syncResult.stats.numIoExceptions++;
+                    return false;
                 }
+                batch.clear();
             }
             
-            String newEventId = null;
-            int newEventCount = 0;
+            if (abort) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Send local events to the remote server. Events are uploaded in batches,
+     * and the state of every uploaded event in a batch is updated in a single
+     * transaction. Events which could not be uploaded are kept for the next
+     * synchronization. Once a batch upload succeeds, the remaining batches are
+     * sent with several requests at the same time.
+     * @return the number of events which were not uploaded, or <code>-1</code>
+     *         if the synchronization must be aborted
+     */
+    private int uploadEvents(NetworkClient client, SharedPreferences prefs,
+            ContentProviderClient provider, int batchSize, int concurrency,
+            SyncResult syncResult) {
+        // Events are read from the outbox one batch at a time, after the last
+        // batch which was read: memory usage does not depend on the number of
+        // events to upload, and the outbox can be updated while it is read.
+        final EventBatchReader reader = new EventBatchReader(provider, client.getDeviceId());
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(
+                batchSize);
+        final List<String> rejectedEventIds = new ArrayList<String>(batchSize);
+        boolean batchUploadSupported = batchSize > 1;
+        boolean batchUploaded = false;
+        int numFailedEvents = 0;
+        
+        // Batches are sent one by one until a batch upload succeeds: the
+        // remote server may not support batch upload.
+        while (!batchUploaded || concurrency == 1) {
+            final EventBatch events = reader.next(batchSize, syncResult);
+            if (events == null) {
+                return -1;
+            }
+            if (events.size() == 0) {
+                break;
+            }
             
-            // Reconcile remote events with local events.
-            for (int i = 0; i < eventsLen; ++i) {
-                String eventId = null;
+            Set<String> uploadedEventIds = null;
+            boolean abort = false;
+            if (batchUploadSupported) {
                 try {
-                    final JSONObject event = events.getJSONObject(i);
-                    eventId = event.getString("id");
-                    
-                    // Check if this event exists in the local database.
-                    if (localEventIds.contains(eventId)) {
-                        // Found the event: update it.
-                        values.clear();
-                        values.put(NUMBER, trimToNull(event.getString("number")));
-                        values.put(NAME, trimToNull(event.getString("name")));
-                        values.put(MESSAGE, trimToNull(event.getString("message")));
-                        
-                        if (DEVELOPER_MODE) {
-                            Log.d(TAG, "Updating event in local database: " + eventId);
-                        }
-                        batch.add(ContentProviderOperation.newUpdate(
-                            Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId))
-                                .withExpectedCount(1).withValues(values).build());
-                        syncResult.stats.numUpdates++;
+                    uploadedEventIds = uploadEventBatch(client, new EventBatchEntity(
+                            events.events), events.size(), rejectedEventIds);
+                    batchUploaded = true;
+                } catch (NetworkClientException e) {
+                    if (e.getStatusCode() == 405 || e.getStatusCode() == 501) {
+                        Log.w(TAG, "Batch upload is not supported: uploading events one by one");
+                        batchUploadSupported = false;
+                    } else if (isEventRejected(e.getStatusCode())) {
+                        // Find the events which were rejected, so that other
+                        // events are uploaded.
+                        Log.w(TAG, "Batch upload rejected: uploading events one by one", e);
                     } else {
-                        // The event was not found: insert it.
-                        values.clear();
-                        values.put(_ID, eventId);
-                        values.put(DEVICE_ID, event.getString("deviceId"));
-                        values.put(CREATED, event.getLong("created"));
-                        values.put(TYPE, event.getInt("type"));
-                        values.put(NUMBER, trimToNull(event.getString("number")));
-                        values.put(NAME, trimToNull(event.getString("name")));
-                        values.put(MESSAGE, trimToNull(event.getString("message")));
-                        values.put(STATE, EventsContract.UPLOADED_STATE);
-                        
-                        if (DEVELOPER_MODE) {
-                            Log.d(TAG, "Adding event to local database: " + eventId);
-                        }
-                        batch.add(ContentProviderOperation.newInsert(
-                            Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId)).withValues(
-                            values).build());
-                        syncResult.stats.numInserts++;
-                        
-                        ++newEventCount;
-                        if (newEventId == null) {
-                            newEventId = eventId;
-                        }
+                        onUploadError(e, syncResult);
+                        return -1;
                     }
-                    
-                    // This event now exists in the local database:
-                    // remove its identifier from this collection as we
-                    // don't want to delete it.
-                    localEventIds.remove(eventId);
-                } catch (JSONException e) {
-                    Log.w(TAG, "Invalid event at index " + i + ": cannot sync", e);
-                    syncResult.stats.numSkippedEntries++;
-                    continue;
+                } catch (Exception e) {
+                    onUploadError(e, syncResult);
+                    return -1;
                 }
             }
-            
-            // The remaining event identifiers was removed on the remote
-            // server: there are still present in the local database. These
-            // events are now being deleted.
-            for (final String eventId : localEventIds) {
-                if (DEVELOPER_MODE) {
-                    Log.d(TAG, "Deleting event in local database: " + eventId);
-                }
-                batch.add(ContentProviderOperation.newDelete(
-                    Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId)).build());
-                syncResult.stats.numDeletes++;
+            if (uploadedEventIds == null) {
+                uploadedEventIds = new HashSet<String>(events.size());
+                abort = !uploadEventsOneByOne(client, events, uploadedEventIds, rejectedEventIds,
+                    syncResult);
             }
             
-            try {
-                provider.applyBatch(batch);
-            } catch (Exception e) {
-                Log.e(TAG, "Database error: cannot sync", e);
-                syncResult.stats.numIoExceptions++;
-                return;
+            addUploadedEvents(events.eventIds, uploadedEventIds, batch, syncResult);
+            if (!abort) {
+                numFailedEvents += events.size() - uploadedEventIds.size();
             }
-            batch.clear();
-            
-            if (newEventCount > 1) {
-                newEventId = null;
+            if (!applyUploadedEvents(prefs, provider, batch, rejectedEventIds, syncResult)) {
+                return -1;
             }
-            if (newEventCount != 0) {
-                startSyncNotificationService(newEventCount, newEventId);
+            if (abort) {
+                return -1;
+            }
+        }
+        
+        if (batchUploaded && concurrency > 1) {
+            final int numBatchFailedEvents = uploadEventBatches(client, prefs, provider, reader,
+                batchSize, concurrency, syncResult);
+            if (numBatchFailedEvents < 0) {
+                return -1;
             }
+            numFailedEvents += numBatchFailedEvents;
         }
         
-        final int numEventsToUpload = eventsToUpload.size();
-        if (numEventsToUpload == 0) {
+        if (reader.getEventCount() == 0) {
             Log.i(TAG, "No events to upload");
         } else {
-            Log.i(TAG, "Found " + numEventsToUpload + " event(s) to upload");
+            Log.i(TAG, "Found " + reader.getEventCount() + " event(s) to upload");
         }
         
-        // Send local events to the remote server.
-        for (final Map.Entry<String, JSONObject> entry : eventsToUpload.entrySet()) {
-            final String eventId = entry.getKey();
-            
-            if (DEVELOPER_MODE) {
-                Log.d(TAG, "Uploading event: " + eventId);
+        final int numDeferredEvents = getDeferredEventCount(provider, client.getDeviceId());
+        if (numDeferredEvents != 0) {
+            Log.i(TAG, numDeferredEvents + " event(s) are waiting for another upload attempt");
+        }
+        if (numFailedEvents != 0 || numDeferredEvents != 0) {
+            // Let the sync manager schedule another synchronization.
+            Log.w(TAG, numFailedEvents + " event(s) were not uploaded");
+            syncResult.stats.numIoExceptions++;
+        }
+        
+        return numFailedEvents;
+    }
+    
+    /**
+     * Upload events in batches, with several requests at the same time. Each
+     * request is sent with its own network client: the client of this
+     * synchronization is used with idle clients from the pool. Events do not
+     * depend on each other, so that batches may be completed in any order:
+     * completed batches are written to the local database with a single
+     * transaction.
+     * @param reader the remaining events are read with this reader
+     * @return the number of events which were not uploaded, or <code>-1</code>
+     *         if the synchronization must be aborted
+     */
+    private int uploadEventBatches(NetworkClient client, SharedPreferences prefs,
+            ContentProviderClient provider, EventBatchReader reader, int batchSize,
+            int concurrency, SyncResult syncResult) {
+        final BlockingQueue<NetworkClient> clients = new ArrayBlockingQueue<NetworkClient>(
+                concurrency);
+        final List<NetworkClient> borrowedClients = new ArrayList<NetworkClient>(concurrency - 1);
+        clients.add(client);
+        for (int i = 1; i < concurrency; ++i) {
+            // Do not wait for a client: fewer requests are sent at the same
+            // time if the pool is busy.
+            final NetworkClient borrowedClient = NetworkClient.newInstance(getContext(), false);
+            if (borrowedClient == null) {
+                break;
             }
-            
-            final JSONObject event = entry.getValue();
-            try {
-                client.put("/events/" + eventId, event);
+            borrowedClients.add(borrowedClient);
+            clients.add(borrowedClient);
+        }
+        final int numClients = clients.size();
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Uploading event batches with " + numClients + " concurrent request(s)");
+        }
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(numClients,
+            UPLOAD_THREAD_FACTORY);
+        final BlockingQueue<BatchUpload> completedUploads = new LinkedBlockingQueue<BatchUpload>();
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(
+                batchSize * numClients);
+        final List<BatchUpload> uploads = new ArrayList<BatchUpload>(numClients);
+        final List<BatchUpload> rejectedUploads = new ArrayList<BatchUpload>(1);
+        final List<String> rejectedEventIds = new ArrayList<String>(batchSize);
+        boolean moreEvents = true;
+        int numPendingUploads = 0;
+        int numFailedEvents = 0;
+        boolean abort = false;
+        boolean interrupted = false;
+        
+        try {
+            for (;;) {
+                // Keep every client busy. Events are read from this thread,
+                // and each batch is kept in memory until it is completed.
+                while (!abort && moreEvents && numPendingUploads < numClients) {
+                    final EventBatch events = reader.next(batchSize, syncResult);
+                    if (events == null) {
+                        abort = true;
+                    } else if (events.size() == 0) {
+                        moreEvents = false;
+                    } else {
+                        executor.execute(new BatchUpload(clients, completedUploads, events));
+                        ++numPendingUploads;
+                    }
+                }
+                if (numPendingUploads == 0) {
+                    break;
+                }
                 
-                if (DEVELOPER_MODE) {
-                    Log.d(TAG, "Updating event state to UPLOADED: " + eventId);
+                // Wait for a batch, and get every other completed batch.
+                try {
+                    uploads.add(completedUploads.take());
+                } catch (InterruptedException e) {
+                    // The synchronization was canceled: wait for the requests
+                    // which were sent, since the remote server may have
+                    // received them.
+                    interrupted = true;
+                    abort = true;
+                    continue;
                 }
-                values.clear();
-                values.put(STATE, EventsContract.UPLOADED_STATE);
-                batch.add(ContentProviderOperation.newUpdate(
-                    Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId)).withValues(values)
-                        .withExpectedCount(1).build());
-                syncResult.stats.numUpdates++;
+                completedUploads.drainTo(uploads);
+                numPendingUploads -= uploads.size();
                 
-                Log.i(TAG, "Event upload successful: " + eventId);
-            } catch (NetworkClientException e) {
-                if (e.getStatusCode() == 404) {
-                    Log.e(TAG, "Device not found: cannot sync", e);
-                    registerDevice();
-                } else {
-                    Log.e(TAG, "Network error: cannot sync", e);
+                for (final BatchUpload upload : uploads) {
+                    if (upload.uploadedEventIds != null) {
+                        addUploadedEvents(upload.events.eventIds, upload.uploadedEventIds, batch,
+                            syncResult);
+                        rejectedEventIds.addAll(upload.rejectedEventIds);
+                        numFailedEvents += upload.events.size() - upload.uploadedEventIds.size();
+                    } else if (upload.error instanceof NetworkClientException
+                            && isEventRejected(((NetworkClientException) upload.error)
+                                    .getStatusCode())) {
+                        // Find the events which were rejected, so that other
+                        // events are uploaded.
+                        Log.w(TAG, "Batch upload rejected: uploading events one by one",
+                            upload.error);
+                        rejectedUploads.add(upload);
+                    } else if (!abort) {
+                        onUploadError(upload.error, syncResult);
+                        abort = true;
+                    }
+                }
+                uploads.clear();
+                if (!applyUploadedEvents(prefs, provider, batch, rejectedEventIds, syncResult)) {
+                    abort = true;
                 }
-                syncResult.stats.numIoExceptions++;
-                return;
-            } catch (IOException e) {
-                Log.e(TAG, "Event upload error: cannot sync", e);
-                syncResult.stats.numIoExceptions++;
-                return;
-            } catch (AppEngineAuthenticationException e) {
-                Log.e(TAG, "Authentication error: cannot sync", e);
-                syncResult.stats.numAuthExceptions++;
-                return;
+            }
+        } finally {
+            executor.shutdown();
+            for (final NetworkClient borrowedClient : borrowedClients) {
+                borrowedClient.close();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
         
-        try {
-            provider.applyBatch(batch);
-        } catch (Exception e) {
-            Log.w(TAG, "Database error: cannot sync", e);
-            syncResult.stats.numIoExceptions++;
-            return;
-        }
-        batch.clear();
-        
-        final SharedPreferences.Editor prefsEditor = prefs.edit();
-        final boolean syncRequired = !eventsToDelete.isEmpty() || !eventsToUpload.isEmpty();
-        if (syncRequired) {
-            // Generate an unique sync token: the server will send this token to
-            // every devices. If this token is received on this device, the sync
-            // will not start.
-            final String syncToken = UUID.randomUUID().toString();
-            prefsEditor.putString(SP_KEY_SYNC_TOKEN, syncToken);
-            Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
-            
-            // Sync user devices.
-            try {
-                final JSONObject data = new JSONObject();
-                data.put("token", syncToken);
-                client.post("/devices/" + client.getDeviceId() + "/sync", data);
-            } catch (NetworkClientException e) {
-                if (e.getStatusCode() == 404) {
-                    registerDevice();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Device sync error: cannot sync", e);
-                syncResult.stats.numIoExceptions++;
-                return;
-            } catch (AppEngineAuthenticationException e) {
-                Log.e(TAG, "Authentication error: cannot sync", e);
-                syncResult.stats.numAuthExceptions++;
-                return;
-            } catch (JSONException e) {
-                Log.w(TAG, "Invalid sync token " + syncToken + ": cannot sync", e);
-                syncResult.stats.numIoExceptions++;
-                return;
+        // Rejected batches are sent again from this thread, one event at a
+        // time.
+        for (final BatchUpload upload : rejectedUploads) {
+            if (abort) {
+                break;
+            }
+            final Set<String> uploadedEventIds = new HashSet<String>(upload.events.size());
+            abort = !uploadEventsOneByOne(client, upload.events, uploadedEventIds,
+                rejectedEventIds, syncResult);
+            addUploadedEvents(upload.events.eventIds, uploadedEventIds, batch, syncResult);
+            if (!abort) {
+                numFailedEvents += upload.events.size() - uploadedEventIds.size();
+            }
+            if (!applyUploadedEvents(prefs, provider, batch, rejectedEventIds, syncResult)) {
+                abort = true;
             }
         }
         
-        // Store sync time.
-        prefsEditor.putLong(SP_KEY_LAST_SYNC, System.currentTimeMillis());
+        return abort ? -1 : numFailedEvents;
+    }
+    
+    /**
+     * Add an update to the state of every uploaded event in a batch.
+     */
+    private static void addUploadedEvents(List<String> batchEventIds,
+            Set<String> uploadedEventIds, ArrayList<ContentProviderOperation> batch,
+            SyncResult syncResult) {
+        final ContentValues values = new ContentValues(2);
+        values.put(STATE, EventsContract.UPLOADED_STATE);
+        values.put(UPLOADED, System.currentTimeMillis());
+        for (final String eventId : batchEventIds) {
+            if (uploadedEventIds.contains(eventId)) {
+                if (DEVELOPER_MODE) {
+                    Log.d(TAG, "Updating event state to UPLOADED: " + eventId);
+                }
+                batch.add(ContentProviderOperation.newUpdate(
+                    Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId)).withValues(
+                    values).withExpectedCount(1).build());
+                syncResult.stats.numUpdates++;
+            } else {
+                Log.w(TAG, "Event upload failed: " + eventId);
+            }
+        }
+    }
+    
+    /**
+     * Add an update for every event rejected by the remote server: the next
+     * upload attempt is delayed, and the event is not sent again after
+     * {@link #MAX_UPLOAD_ATTEMPTS} attempts.
+     */
+    private static void addRejectedEvents(ContentProviderClient provider,
+            List<String> rejectedEventIds, ArrayList<ContentProviderOperation> batch,
+            SyncResult syncResult) throws RemoteException {
+        final Cursor c = provider.query(EventsContract.CONTENT_URI, PROJECTION_ATTEMPTS, STATE
+                + "=? AND " + EventsContract.createEventIdSelection(rejectedEventIds),
+            new String[] { String.valueOf(EventsContract.PENDING_UPLOAD_STATE) }, null);
+        try {
+            final int idIdx = c.getColumnIndexOrThrow(_ID);
+            final int attemptsIdx = c.getColumnIndexOrThrow(ATTEMPTS);
+            final long now = System.currentTimeMillis();
+            while (c.moveToNext()) {
+                final String eventId = c.getString(idIdx);
+                final int attempts = c.getInt(attemptsIdx) + 1;
+                final ContentValues values = new ContentValues(3);
+                values.put(ATTEMPTS, attempts);
+                if (attempts >= MAX_UPLOAD_ATTEMPTS) {
+                    Log.w(TAG, "Event rejected after " + attempts + " attempts: " + eventId);
+                    values.put(STATE, EventsContract.FAILED_STATE);
+                    syncResult.stats.numSkippedEntries++;
+                } else {
+                    final long retryDelay = getRetryDelay(attempts);
+                    if (DEVELOPER_MODE) {
+                        Log.d(TAG, "Event rejected (attempt " + attempts + "): next attempt in "
+                                + retryDelay + " ms for " + eventId);
+                    }
+                    values.put(NEXT_ATTEMPT, now + retryDelay);
+                }
+                batch.add(ContentProviderOperation.newUpdate(
+                    Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId)).withValues(values)
+                        .build());
+            }
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * Get the delay before the next upload attempt of a rejected event. This
+     * delay is doubled after each attempt, and a random part is added so that
+     * rejected events are not sent again at the same time.
+     * @param attempts number of failed attempts
+     */
+    static long getRetryDelay(int attempts) {
+        final long maxDelay = Math.min(MAX_RETRY_DELAY, INITIAL_RETRY_DELAY << Math.min(
+            attempts - 1, 16));
+        return maxDelay / 2 + (long) (RETRY_RANDOM.nextDouble() * (maxDelay / 2));
+    }
+    
+    /**
+     * Check if an upload was rejected because of the events being sent. Other
+     * errors (such as an unavailable server) are not caused by the events:
+     * server errors are transient, and the upload is retried without counting
+     * an attempt, so that events are not lost during an outage.
+     */
+    private static boolean isEventRejected(int statusCode) {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 401 && statusCode != 404
+                && statusCode != 408 && statusCode != 429;
+    }
+    
+    /**
+     * Get the number of events waiting for another upload attempt.
+     */
+    private static int getDeferredEventCount(ContentProviderClient provider, String deviceId) {
+        Cursor c = null;
+        try {
+            c = provider.query(EventsContract.OUTBOX_URI, PROJECTION_ID, OPERATION + "=? AND "
+                    + DEVICE_ID + "=? AND " + AVAILABLE + ">?", new String[] {
+                    String.valueOf(EventsContract.UPLOAD_OPERATION), deviceId,
+                    String.valueOf(System.currentTimeMillis()) }, null);
+            return c.getCount();
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to get events waiting for upload", e);
+            return 0;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+    
+    /**
+     * Update the state of uploaded and rejected events in a single
+     * transaction.
+     * @return <code>false</code> if the synchronization must be aborted
+     */
+    private static boolean applyUploadedEvents(SharedPreferences prefs,
+            ContentProviderClient provider, ArrayList<ContentProviderOperation> batch,
+            List<String> rejectedEventIds, SyncResult syncResult) {
+        if (!batch.isEmpty()) {
+            setDeviceSyncPending(prefs);
+        }
+        try {
+            if (!rejectedEventIds.isEmpty()) {
+                addRejectedEvents(provider, rejectedEventIds, batch, syncResult);
+            }
+            if (!batch.isEmpty()) {
+                provider.applyBatch(batch);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Database error: cannot sync", e);
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } finally {
+            batch.clear();
+            rejectedEventIds.clear();
+        }
+        return true;
+    }
+    
+    private void onUploadError(Exception e, SyncResult syncResult) {
+        if (e instanceof AppEngineAuthenticationException) {
+            Log.e(TAG, "Authentication error: cannot sync", e);
+            syncResult.stats.numAuthExceptions++;
+            return;
+        }
+        
+        if (e instanceof JSONException) {
+            Log.e(TAG, "Invalid batch upload result: cannot sync", e);
+        } else if (e instanceof NetworkClientException
+                && ((NetworkClientException) e).getStatusCode() == 404) {
+            Log.e(TAG, "Device not found: cannot sync", e);
+            registerDevice();
+        } else if (e instanceof NetworkClientException) {
+            Log.e(TAG, "Network error: cannot sync", e);
+        } else {
+            Log.e(TAG, "Event upload error: cannot sync", e);
+        }
+        syncResult.stats.numIoExceptions++;
+    }
+    
+    /**
+     * Upload a batch of events with a single request.
+     * @param rejectedEventIds identifiers of the events rejected by the remote
+     *            server are added to this list
+     * @return identifiers of the events which were uploaded
+     */
+    private static Set<String> uploadEventBatch(NetworkClient client, EventBatchEntity events,
+            int count, List<String> rejectedEventIds) throws IOException,
+            AppEngineAuthenticationException, JSONException {
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Uploading " + count + " event(s) in a single batch");
+        }
+        
+        // The server sends a result for each event in the batch.
+        final JSONObject resp = client.post("/events/batch", events);
+        final JSONArray results = resp != null ? resp.optJSONArray("results") : null;
+        final int resultsLen = results != null ? results.length() : 0;
+        final Set<String> uploadedEventIds = new HashSet<String>(resultsLen);
+        for (int i = 0; i < resultsLen; ++i) {
+            final JSONObject result = results.getJSONObject(i);
+            final String eventId = result.getString("id");
+            final int statusCode = result.optInt("status", 500);
+            if (statusCode == 200 || statusCode == 201 || statusCode == 204) {
+                uploadedEventIds.add(eventId);
+                Log.i(TAG, "Event upload successful: " + eventId);
+            } else {
+                if (isEventRejected(statusCode)) {
+                    rejectedEventIds.add(eventId);
+                }
+                if (DEVELOPER_MODE) {
+                    Log.d(TAG, "Event upload failed with error " + statusCode + ": " + eventId);
+                }
+            }
+        }
+        return uploadedEventIds;
+    }
+    
+    /**
+     * Upload events with a request for each event. This method is used when
+     * the remote server does not support batch upload, or to find the events
+     * which were rejected in a batch.
+     * @param rejectedEventIds identifiers of the events rejected by the remote
+     *            server are added to this list
+     * @return <code>false</code> if the synchronization must be aborted
+     */
+    private boolean uploadEventsOneByOne(NetworkClient client, EventBatch events,
+            Set<String> uploadedEventIds, List<String> rejectedEventIds, SyncResult syncResult) {
+        final int count = events.size();
+        for (int i = 0; i < count; ++i) {
+            final String eventId = events.eventIds.get(i);
+            if (DEVELOPER_MODE) {
+                Log.d(TAG, "Uploading event: " + eventId);
+            }
+            
+            try {
+                final JSONObject event = new JSONObject(events.events.get(i));
+                client.put("/events/" + eventId, event);
+                uploadedEventIds.add(eventId);
+                
+                Log.i(TAG, "Event upload successful: " + eventId);
+            } catch (JSONException e) {
+                Log.w(TAG, "Invalid event " + eventId + ": cannot sync", e);
+                rejectedEventIds.add(eventId);
+            } catch (NetworkClientException e) {
+                if (isEventRejected(e.getStatusCode())) {
+                    // Other events are still sent.
+                    Log.w(TAG, "Event rejected by the remote server: " + eventId, e);
+                    rejectedEventIds.add(eventId);
+                    continue;
+                }
+                if (e.getStatusCode() == 404) {
+                    Log.e(TAG, "Device not found: cannot sync", e);
+                    registerDevice();
+                } else {
+                    Log.e(TAG, "Network error: cannot sync", e);
+                }
+                syncResult.stats.numIoExceptions++;
+                return false;
+            } catch (IOException e) {
+                Log.e(TAG, "Event upload error: cannot sync", e);
+                syncResult.stats.numIoExceptions++;
+                return false;
+            } catch (AppEngineAuthenticationException e) {
+                Log.e(TAG, "Authentication error: cannot sync", e);
+                syncResult.stats.numAuthExceptions++;
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Synchronize remote events with the local database. If a change cursor is
+     * available, only events which were updated or deleted since the last sync
+     * are fetched. A full listing is done when the cursor is missing or
+     * expired.
+     * @return <code>false</code> if the synchronization must be aborted
+     */
+    private boolean syncRemoteEvents(NetworkClient client, SharedPreferences prefs,
+            ContentProviderClient provider, SyncResult syncResult) {
+        // The local database may have been created since the sync state was
+        // stored (when an upgrade cannot keep existing events): every remote
+        // event must be listed again. Events waiting for upload are kept with
+        // the sync state, which is only reset when the database is empty.
+        try {
+            if (hasSyncState(prefs) && !hasEvents(provider)) {
+                Log.i(TAG, "No events in local database: resetting sync state");
+                resetSyncState(getContext());
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to get events from local database", e);
+            syncResult.stats.numIoExceptions++;
+            return false;
+        }
+        
+        final String syncCursor = prefs.getString(SP_KEY_SYNC_CURSOR, null);
+        if (syncCursor == null) {
+            return syncAllRemoteEvents(client, prefs, provider, syncResult);
+        }
+        
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Fetching event changes from the remote server since " + syncCursor);
+        }
+        
+        // Changes are written to the local database while they are being
+        // received.
+        final RemoteEventWriter writer = new RemoteEventWriter(provider, syncResult, false);
+        try {
+            client.get("/events/changes?since=" + Uri.encode(syncCursor), writer);
+            writer.flush();
+        } catch (NetworkClientException e) {
+            if (e.getStatusCode() == 404 || e.getStatusCode() == 410) {
+                // The server does not know this cursor anymore.
+                Log.i(TAG, "Sync cursor expired: fetching all events");
+                return syncAllRemoteEvents(client, prefs, provider, syncResult);
+            }
+            Log.e(TAG, "Event changes error: cannot sync", e);
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Event changes error: cannot sync", e);
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (AppEngineAuthenticationException e) {
+            Log.e(TAG, "Authentication error: cannot sync", e);
+            syncResult.stats.numAuthExceptions++;
+            return false;
+        }
+        
+        Log.i(TAG, "Found " + writer.getEventCount() + " updated event(s) and "
+                + writer.getDeletedEventCount() + " deleted event(s) from the remote server");
+        
+        // Changes are stored: the next sync will start from the new cursor.
+        final String newSyncCursor = writer.getSyncCursor();
+        storeSyncCursor(prefs, newSyncCursor != null ? newSyncCursor : syncCursor);
+        notifyNewEvents(writer.getNewEventCount(), writer.getNewEventId());
+        
+        return true;
+    }
+    
+    /**
+     * Get all events from the remote server, and reconcile them with the local
+     * database. Events are fetched page by page, and each page is applied
+     * before the next one is requested. The listing is saved after each page:
+     * an interrupted listing is resumed from the next page. The listing is
+     * skipped if the remote server reports that events were not modified since
+     * the last listing.
+     * @return <code>false</code> if the synchronization must be aborted
+     */
+    private boolean syncAllRemoteEvents(NetworkClient client, SharedPreferences prefs,
+            ContentProviderClient provider, SyncResult syncResult) {
+        final ListingCheckpoint checkpoint = new ListingCheckpoint(getContext(), prefs);
+        final RemoteEventWriter writer = new RemoteEventWriter(provider, syncResult, true);
+        String pageToken = checkpoint.getPageToken();
+        if (pageToken != null && checkpoint.isExpired()) {
+            Log.i(TAG, "Event listing checkpoint is too old: fetching all events");
+            pageToken = null;
+        }
+        if (pageToken != null) {
+            try {
+                checkpoint.readEventIds(writer.getReceivedEventIds());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read event listing checkpoint: fetching all events", e);
+                writer.getReceivedEventIds().clear();
+                pageToken = null;
+            }
+        }
+        final boolean resumed = pageToken != null;
+        
+        String newSyncCursor = null;
+        CacheValidator validator = null;
+        CacheValidator newValidator = null;
+        final long startTime;
+        if (resumed) {
+            Log.i(TAG, "Resuming event listing after "
+                    + writer.getReceivedEventIds().size() + " event(s)");
+            startTime = checkpoint.getStartTime();
+            newSyncCursor = checkpoint.getSyncCursor();
+            newValidator = checkpoint.getValidator();
+        } else {
+            checkpoint.clear();
+            startTime = System.currentTimeMillis();
+            
+            // Get the current change cursor before listing events: changes
+            // made while events are being fetched will be sent again on the
+            // next sync.
+            try {
+                final JSONObject cursor = client.get("/events/changes");
+                if (cursor != null) {
+                    newSyncCursor = cursor.optString("cursor", null);
+                }
+            } catch (NetworkClientException e) {
+                // The full listing is still available.
+                Log.w(TAG, "Failed to get sync cursor: incremental sync is disabled", e);
+            } catch (IOException e) {
+                Log.e(TAG, "Sync cursor error: cannot sync", e);
+                syncResult.stats.numIoExceptions++;
+                return false;
+            } catch (AppEngineAuthenticationException e) {
+                Log.e(TAG, "Authentication error: cannot sync", e);
+                syncResult.stats.numAuthExceptions++;
+                return false;
+            }
+            validator = new CacheValidator(prefs.getString(SP_KEY_EVENTS_ETAG, null), prefs
+                    .getString(SP_KEY_EVENTS_LAST_MODIFIED, null));
+        }
+        
+        // Get all events from the remote server: events are written to the
+        // local database while they are being received.
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Fetching events from the remote server (" + validator + ")");
+        }
+        int pageCount = 0;
+        try {
+            do {
+                // Only the first page is a conditional request: the
+                // validator applies to the whole listing.
+                final CacheValidator pageValidator = client.get(NetworkClient.toPageUri(
+                    "/events", LISTING_PAGE_SIZE, pageToken), pageToken == null ? validator
+                        : null, writer);
+                if (pageValidator == null) {
+                    // Local events are up to date: there is nothing to
+                    // reconcile.
+                    Log.i(TAG, "Remote events not modified since last sync");
+                    storeSyncCursor(prefs, newSyncCursor);
+                    return true;
+                }
+                if (pageToken == null) {
+                    newValidator = pageValidator;
+                }
+                
+                // Write this page before fetching the next one: a failure
+                // does not discard the pages which were already received.
+                writer.flush();
+                ++pageCount;
+                
+                final String nextPageToken = writer.nextPageToken();
+                if (nextPageToken != null && nextPageToken.equals(pageToken)) {
+                    throw new IOException("Remote server sent the same page twice");
+                }
+                if (nextPageToken != null) {
+                    checkpoint.save(startTime, newSyncCursor, newValidator, writer
+                            .pageEventIds(), nextPageToken);
+                }
+                pageToken = nextPageToken;
+            } while (pageToken != null);
+            
+            if (DEVELOPER_MODE) {
+                Log.d(TAG, "Fetched " + pageCount + " page(s) of events");
+            }
+            
+            // Uploaded events which were not received were removed on the
+            // remote server: there are still present in the local database.
+            // These events are now being deleted. Events uploaded since the
+            // listing started may be missing from the pages received before
+            // they were uploaded: they are kept.
+            final Set<String> localEventIds = getUploadedEventIds(provider, startTime);
+            localEventIds.removeAll(writer.getReceivedEventIds());
+            for (final String eventId : localEventIds) {
+                writer.delete(eventId);
+            }
+            writer.flush();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to get events from local database", e);
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (NetworkClientException e) {
+            if (resumed && pageCount == 0
+                    && (e.getStatusCode() == 404 || e.getStatusCode() == 410)) {
+                // The server does not know this continuation token anymore.
+                Log.i(TAG, "Event listing checkpoint expired: fetching all events");
+                checkpoint.clear();
+                return syncAllRemoteEvents(client, prefs, provider, syncResult);
+            }
+            Log.e(TAG, "Event listing error: cannot sync", e);
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Event listing error: cannot sync", e);
+            syncResult.stats.numIoExceptions++;
+            return false;
+        } catch (AppEngineAuthenticationException e) {
+            Log.e(TAG, "Authentication error: cannot sync", e);
+            syncResult.stats.numAuthExceptions++;
+            return false;
+        }
+        
+        if (writer.getEventCount() == 0) {
+            Log.i(TAG, "No events from the remote server");
+        } else {
+            Log.i(TAG, "Found " + writer.getEventCount() + " event(s) from the remote server");
+        }
+        
+        checkpoint.clear();
+        storeSyncCursor(prefs, newSyncCursor);
+        storeEventsValidator(prefs, newValidator);
+        notifyNewEvents(writer.getNewEventCount(), writer.getNewEventId());
+        
+        return true;
+    }
+    
+    /**
+     * Check if the local database contains events. The first page of a single
+     * event is read from the creation time index, without reading other
+     * events.
+     */
+    private static boolean hasEvents(ContentProviderClient provider) throws RemoteException {
+        final Cursor c = provider.query(EventsContract.getPageUri(1), PROJECTION_ID, null, null,
+            null);
+        try {
+            return c.getCount() != 0;
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * Check if a sync state is stored: a change cursor, a listing validator or
+     * a listing checkpoint.
+     */
+    private boolean hasSyncState(SharedPreferences prefs) {
+        return prefs.contains(SP_KEY_SYNC_CURSOR) || prefs.contains(SP_KEY_EVENTS_ETAG)
+                || prefs.contains(SP_KEY_EVENTS_LAST_MODIFIED)
+                || new ListingCheckpoint(getContext(), prefs).getPageToken() != null;
+    }
+    
+    /**
+     * Get identifiers of uploaded events in the local database.
+     * @param uploadedBefore only events uploaded by this device before this
+     *            time are returned, along with events received from the
+     *            remote server
+     */
+    private static Set<String> getUploadedEventIds(ContentProviderClient provider,
+            long uploadedBefore) throws RemoteException {
+        final Cursor c = provider.query(EventsContract.CONTENT_URI, PROJECTION_ID, STATE
+                + "=? AND " + UPLOADED + "<?", new String[] {
+                String.valueOf(EventsContract.UPLOADED_STATE), String.valueOf(uploadedBefore) },
+            null);
+        try {
+            final Set<String> eventIds = new HashSet<String>(c.getCount());
+            final int idIdx = c.getColumnIndexOrThrow(_ID);
+            while (c.moveToNext()) {
+                eventIds.add(c.getString(idIdx));
+            }
+            return eventIds;
+        } finally {
+            c.close();
+        }
+    }
+    
+    /**
+     * Get identifiers of events which exist in the local database, among the
+     * given event identifiers.
+     */
+    private static Set<String> getLocalEventIds(ContentProviderClient provider,
+            Set<String> eventIds) throws RemoteException {
+        final Set<String> localEventIds = new HashSet<String>(eventIds.size());
+        final List<String> batchEventIds = new ArrayList<String>(MAX_EVENT_IDS);
+        final Iterator<String> i = eventIds.iterator();
+        while (i.hasNext()) {
+            batchEventIds.add(i.next());
+            if (batchEventIds.size() == MAX_EVENT_IDS || !i.hasNext()) {
+                final Cursor c = provider.query(EventsContract.CONTENT_URI, PROJECTION_ID,
+                    EventsContract.createEventIdSelection(batchEventIds), null, null);
+                try {
+                    final int idIdx = c.getColumnIndexOrThrow(_ID);
+                    while (c.moveToNext()) {
+                        localEventIds.add(c.getString(idIdx));
+                    }
+                } finally {
+                    c.close();
+                }
+                batchEventIds.clear();
+            }
+        }
+        return localEventIds;
+    }
+    
+    /**
+     * Fill values for updating a local event from a remote event.
+     */
+    private static void readEventUpdate(JSONObject event, ContentValues values)
+            throws JSONException {
+        values.clear();
+        values.put(NUMBER, trimToNull(event.getString("number")));
+        values.put(NAME, trimToNull(event.getString("name")));
+        values.put(MESSAGE, trimToNull(event.getString("message")));
+    }
+    
+    /**
+     * Fill values for inserting a remote event into the local database.
+     */
+    private static void readEventInsert(String eventId, JSONObject event, ContentValues values)
+            throws JSONException {
+        values.clear();
+        values.put(_ID, eventId);
+        values.put(DEVICE_ID, event.getString("deviceId"));
+        values.put(CREATED, event.getLong("created"));
+        values.put(TYPE, event.getInt("type"));
+        values.put(NUMBER, trimToNull(event.getString("number")));
+        values.put(NAME, trimToNull(event.getString("name")));
+        values.put(MESSAGE, trimToNull(event.getString("message")));
+        values.put(STATE, EventsContract.UPLOADED_STATE);
+    }
+    
+    /**
+     * Check if a synchronization was requested by this device only. Several
+     * tokens are set when requests were merged: the synchronization is skipped
+     * if every token is the last token sent by this device.
+     */
+    private static boolean isSyncTokenConsumed(String syncToken, String lastSyncToken) {
+        if (syncToken == null || lastSyncToken == null) {
+            return false;
+        }
+        for (final String token : syncToken.split(EventsContract.SYNC_TOKEN_SEPARATOR)) {
+            if (!lastSyncToken.equals(token)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Remember that other devices must be notified of the changes sent to the
+     * remote server. This flag is stored before the local database is updated,
+     * so that the notification is not lost if the sync is interrupted.
+     */
+    private static void setDeviceSyncPending(SharedPreferences prefs) {
+        if (!prefs.getBoolean(SP_KEY_DEVICE_SYNC_PENDING, false)) {
+            final SharedPreferences.Editor prefsEditor = prefs.edit();
+            prefsEditor.putBoolean(SP_KEY_DEVICE_SYNC_PENDING, true);
+            Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
+        }
+    }
+    
+    private static void storeSyncCursor(SharedPreferences prefs, String syncCursor) {
+        final SharedPreferences.Editor prefsEditor = prefs.edit();
+        if (syncCursor == null) {
+            prefsEditor.remove(SP_KEY_SYNC_CURSOR);
+        } else {
+            prefsEditor.putString(SP_KEY_SYNC_CURSOR, syncCursor);
+        }
         Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
     }
     
+    /**
+     * Store the validator of the last event listing.
+     * @param validator event listing validator (may be <code>null</code>)
+     */
+    private static void storeEventsValidator(SharedPreferences prefs, CacheValidator validator) {
+        final SharedPreferences.Editor prefsEditor = prefs.edit();
+        if (validator == null || validator.getETag() == null) {
+            prefsEditor.remove(SP_KEY_EVENTS_ETAG);
+        } else {
+            prefsEditor.putString(SP_KEY_EVENTS_ETAG, validator.getETag());
+        }
+        if (validator == null || validator.getLastModified() == null) {
+            prefsEditor.remove(SP_KEY_EVENTS_LAST_MODIFIED);
+        } else {
+            prefsEditor.putString(SP_KEY_EVENTS_LAST_MODIFIED, validator.getLastModified());
+        }
+        Features.getFeature(SharedPreferencesSaverFeature.class).save(prefsEditor);
+    }
+    
+    /**
+     * Forget the remote sync state. This method must be called when the local
+     * database is cleared, so that the next full sync lists every remote event.
+     * A full sync also resets this state when the local database has no remote
+     * events.
+     */
+    public static void resetSyncState(Context context) {
+        final SharedPreferences prefs = context.getSharedPreferences(SHARED_PREFERENCES_FILE,
+            Context.MODE_PRIVATE);
+        storeSyncCursor(prefs, null);
+        storeEventsValidator(prefs, null);
+        new ListingCheckpoint(context, prefs).clear();
+    }
+    
+    private void notifyNewEvents(int newEventCount, String newEventId) {
+        if (newEventCount > 1) {
+            newEventId = null;
+        }
+        if (newEventCount != 0) {
+            startSyncNotificationService(newEventCount, newEventId);
+        }
+    }
+    
     private void registerDevice() {
         final Intent i = new Intent(getContext(), DeviceInitService.class);
         i.putExtra(EXTRA_FORCE_UPLOAD, true);
@@ -521,6 +1359,434 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         getContext().startService(i);
     }
     
+    /**
+     * Batch of local events to upload, read from the outbox. Events are kept
+     * in memory, so that the outbox can be updated while the batch is being
+     * sent.
+     * @author Pixmob
+     */
+    private static class EventBatch {
+        public final List<String> eventIds;
+        /**
+         * JSON representation of each event.
+         */
+        public final List<String> events;
+        
+        public EventBatch(final int capacity) {
+            eventIds = new ArrayList<String>(capacity);
+            events = new ArrayList<String>(capacity);
+        }
+        
+        public int size() {
+            return eventIds.size();
+        }
+    }
+    
+    /**
+     * Read events to upload from the outbox, one batch at a time. Each batch
+     * is read with a new query, starting after the last operation which was
+     * read: events removed from the outbox once they are uploaded do not
+     * change which events are read next.
+     * @author Pixmob
+     */
+    private static class EventBatchReader {
+        private final ContentProviderClient provider;
+        private final String deviceId;
+        private final String now = String.valueOf(System.currentTimeMillis());
+        private long lastSequence;
+        private int eventCount;
+        
+        public EventBatchReader(final ContentProviderClient provider, final String deviceId) {
+            this.provider = provider;
+            this.deviceId = deviceId;
+        }
+        
+        /**
+         * Read the next batch of events. Events which failed to upload are
+         * skipped until their next attempt.
+         * @return the events, which may be empty if every event was read, or
+         *         <code>null</code> if the events could not be read
+         */
+        public EventBatch next(int count, SyncResult syncResult) {
+            final Cursor c;
+            try {
+                c = provider.query(EventsContract.getOutboxUri(count), PROJECTION, OPERATION
+                        + "=? AND " + DEVICE_ID + "=? AND " + AVAILABLE + "<=? AND " + SEQUENCE
+                        + ">?", new String[] { String.valueOf(EventsContract.UPLOAD_OPERATION),
+                        deviceId, now, String.valueOf(lastSequence) }, null);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to get events: cannot sync", e);
+                syncResult.stats.numIoExceptions++;
+                return null;
+            }
+            
+            try {
+                final EventBatch events = new EventBatch(c.getCount());
+                final int idIdx = c.getColumnIndexOrThrow(_ID);
+                final int seqIdx = c.getColumnIndexOrThrow(SEQUENCE);
+                while (c.moveToNext()) {
+                    events.eventIds.add(c.getString(idIdx));
+                    events.events.add(EventBatchEntity.toJson(c, deviceId));
+                    lastSequence = c.getLong(seqIdx);
+                }
+                eventCount += events.size();
+                return events;
+            } finally {
+                c.close();
+            }
+        }
+        
+        /**
+         * Get the number of events which were read.
+         */
+        public int getEventCount() {
+            return eventCount;
+        }
+    }
+    
+    /**
+     * Request body for uploading a batch of local events. Events are read
+     * before the request is sent, so that the request can be sent from
+     * another thread.
+     * @author Pixmob
+     */
+    private static class EventBatchEntity extends JsonStreamEntity {
+        private final List<String> events;
+        
+        /**
+         * Create a new instance.
+         * @param events JSON representation of each event
+         * @see #toJson(Cursor, String)
+         */
+        public EventBatchEntity(final List<String> events) {
+            this.events = events;
+        }
+        
+        @Override
+        protected void writeJson(Writer writer) throws IOException {
+            writer.write("{\"events\":[");
+            final int count = events.size();
+            for (int i = 0; i < count; ++i) {
+                if (i != 0) {
+                    writer.write(',');
+                }
+                writer.write(events.get(i));
+            }
+            writer.write("]}");
+        }
+        
+        /**
+         * Get the JSON representation of the event at the current cursor
+         * position.
+         */
+        public static String toJson(Cursor c, String deviceId) {
+            final StringBuilder buf = new StringBuilder(256);
+            buf.append("{\"id\":").append(JSONObject.quote(c.getString(c
+                    .getColumnIndexOrThrow(_ID))));
+            buf.append(",\"deviceId\":").append(JSONObject.quote(deviceId));
+            buf.append(",\"created\":").append(c.getLong(c.getColumnIndexOrThrow(CREATED)));
+            buf.append(",\"type\":").append(c.getInt(c.getColumnIndexOrThrow(TYPE)));
+            appendString(buf, "number", c.getString(c.getColumnIndexOrThrow(NUMBER)));
+            appendString(buf, "name", c.getString(c.getColumnIndexOrThrow(NAME)));
+            appendString(buf, "message", c.getString(c.getColumnIndexOrThrow(MESSAGE)));
+            return buf.append('}').toString();
+        }
+        
+        private static void appendString(StringBuilder buf, String name, String value) {
+            if (value != null) {
+                buf.append(",\"").append(name).append("\":").append(JSONObject.quote(value));
+            }
+        }
+    }
+    
+    /**
+     * Task for uploading a batch of events with a network client taken from a
+     * queue of idle clients. This task is added to a queue of completed
+     * uploads when it is done, even if the upload failed.
+     * @author Pixmob
+     */
+    private static class BatchUpload implements Runnable {
+        public final EventBatch events;
+        public final List<String> rejectedEventIds = new ArrayList<String>(1);
+        private final BlockingQueue<NetworkClient> clients;
+        private final BlockingQueue<BatchUpload> completedUploads;
+        /**
+         * Identifiers of the uploaded events, or <code>null</code> if the
+         * upload failed.
+         */
+        public Set<String> uploadedEventIds;
+        public Exception error;
+        
+        public BatchUpload(final BlockingQueue<NetworkClient> clients,
+                final BlockingQueue<BatchUpload> completedUploads, final EventBatch events) {
+            this.clients = clients;
+            this.completedUploads = completedUploads;
+            this.events = events;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                // There are as many clients as threads: a client is
+                // available.
+                final NetworkClient client = clients.take();
+                try {
+                    uploadedEventIds = uploadEventBatch(client, new EventBatchEntity(
+                            events.events), events.size(), rejectedEventIds);
+                } finally {
+                    clients.add(client);
+                }
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                completedUploads.add(this);
+            }
+        }
+    }
+    
+    /**
+     * Write remote events to the local database. Events are written in small
+     * transactions while they are being received, so that memory usage does
+     * not depend on the number of events.
+     * @author Pixmob
+     */
+    private static class RemoteEventWriter implements JsonStreamHandler {
+        private static final String[] UPLOADED_STATE_ARGS = { String
+                .valueOf(EventsContract.UPLOADED_STATE) };
+        private final ContentProviderClient provider;
+        private final SyncResult syncResult;
+        private final Set<String> receivedEventIds;
+        private final List<String> pageEventIds;
+        private final List<JSONObject> events = new ArrayList<JSONObject>(WRITE_BATCH_SIZE);
+        private final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(
+                WRITE_BATCH_SIZE);
+        private final List<ContentValues> inserts = new ArrayList<ContentValues>(WRITE_BATCH_SIZE);
+        private final ContentValues values = new ContentValues(8);
+        private String syncCursor;
+        private String nextPageToken;
+        private String newEventId;
+        private int newEventCount;
+        private int eventCount;
+        private int deletedEventCount;
+        
+        /**
+         * Create a new instance.
+         * @param trackEventIds set to <code>true</code> to keep identifiers
+         *            of written events
+         * @see #getReceivedEventIds()
+         */
+        public RemoteEventWriter(final ContentProviderClient provider,
+                final SyncResult syncResult, final boolean trackEventIds) {
+            this.provider = provider;
+            this.syncResult = syncResult;
+            receivedEventIds = trackEventIds ? new HashSet<String>() : null;
+            pageEventIds = trackEventIds ? new ArrayList<String>(LISTING_PAGE_SIZE) : null;
+        }
+        
+        @Override
+        public void onArrayItem(String name, Object item) throws IOException, JSONException {
+            if (name == null || "events".equals(name)) {
+                if (item instanceof JSONObject) {
+                    write((JSONObject) item);
+                } else {
+                    Log.w(TAG, "Invalid event: " + item);
+                    syncResult.stats.numSkippedEntries++;
+                }
+            } else if ("deleted".equals(name)) {
+                delete(String.valueOf(item));
+            }
+        }
+        
+        @Override
+        public void onProperty(String name, Object value) {
+            if ("cursor".equals(name) && value instanceof String) {
+                syncCursor = (String) value;
+            } else if ("next".equals(name) && value instanceof String) {
+                nextPageToken = (String) value;
+            }
+        }
+        
+        /**
+         * Insert or update a remote event in the local database.
+         */
+        public void write(JSONObject event) throws IOException {
+            ++eventCount;
+            events.add(event);
+            if (events.size() >= WRITE_BATCH_SIZE) {
+                flush();
+            }
+        }
+        
+        /**
+         * Delete an uploaded event in the local database.
+         */
+        public void delete(String eventId) throws IOException {
+            if (DEVELOPER_MODE) {
+                Log.d(TAG, "Deleting event in local database: " + eventId);
+            }
+            ++deletedEventCount;
+            batch.add(ContentProviderOperation.newDelete(
+                Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId)).withSelection(
+                STATE + "=?", UPLOADED_STATE_ARGS).build());
+            syncResult.stats.numDeletes++;
+            if (batch.size() >= WRITE_BATCH_SIZE) {
+                flush();
+            }
+        }
+        
+        /**
+         * Write pending events to the local database. New events are inserted
+         * in a single transaction, and other changes are applied in another
+         * transaction.
+         */
+        public void flush() throws IOException {
+            try {
+                writeEvents();
+                if (!inserts.isEmpty()) {
+                    provider.bulkInsert(EventsContract.CONTENT_URI, inserts
+                            .toArray(new ContentValues[inserts.size()]));
+                }
+                if (!batch.isEmpty()) {
+                    provider.applyBatch(batch);
+                }
+            } catch (RemoteException e) {
+                throw newDatabaseException(e);
+            } catch (OperationApplicationException e) {
+                throw newDatabaseException(e);
+            }
+            inserts.clear();
+            batch.clear();
+            events.clear();
+        }
+        
+        private void writeEvents() throws RemoteException {
+            if (events.isEmpty()) {
+                return;
+            }
+            
+            // Only look for the events being written: there is no need to get
+            // every local event.
+            final Set<String> eventIds = new HashSet<String>(events.size());
+            for (final JSONObject event : events) {
+                final String eventId = EventsContract.normalizeEventId(event.optString("id"));
+                if (eventId != null) {
+                    eventIds.add(eventId);
+                }
+            }
+            final Set<String> existingEventIds = getLocalEventIds(provider, eventIds);
+            
+            for (final JSONObject event : events) {
+                try {
+                    // Identifiers are compared in the form returned by the
+                    // provider.
+                    final String eventId = EventsContract.normalizeEventId(event
+                            .getString("id"));
+                    if (eventId == null) {
+                        Log.w(TAG, "Invalid event identifier: cannot sync " + event.opt("id"));
+                        syncResult.stats.numSkippedEntries++;
+                        continue;
+                    }
+                    
+                    // Check if this event exists in the local database.
+                    if (existingEventIds.contains(eventId)) {
+                        // Found the event: update it, unless it has local
+                        // changes which are not uploaded yet.
+                        readEventUpdate(event, values);
+                        
+                        if (DEVELOPER_MODE) {
+                            Log.d(TAG, "Updating event in local database: " + eventId);
+                        }
+                        batch.add(ContentProviderOperation.newUpdate(
+                            Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId))
+                                .withValues(values).withSelection(STATE + "=?",
+                                    UPLOADED_STATE_ARGS).build());
+                        syncResult.stats.numUpdates++;
+                    } else {
+                        // The event was not found: insert it.
+                        final ContentValues insertValues = new ContentValues(8);
+                        readEventInsert(eventId, event, insertValues);
+                        
+                        if (DEVELOPER_MODE) {
+                            Log.d(TAG, "Adding event to local database: " + eventId);
+                        }
+                        inserts.add(insertValues);
+                        syncResult.stats.numInserts++;
+                        
+                        ++newEventCount;
+                        if (newEventId == null) {
+                            newEventId = eventId;
+                        }
+                    }
+                    
+                    // This event now exists in the local database: keep its
+                    // identifier as we don't want to delete it.
+                    if (receivedEventIds != null) {
+                        receivedEventIds.add(eventId);
+                        pageEventIds.add(eventId);
+                    }
+                } catch (JSONException e) {
+                    Log.w(TAG, "Invalid event: cannot sync", e);
+                    syncResult.stats.numSkippedEntries++;
+                }
+            }
+        }
+        
+        private static IOException newDatabaseException(Exception cause) {
+            final IOException e = new IOException("Database error");
+            e.initCause(cause);
+            return e;
+        }
+        
+        /**
+         * Get identifiers of written events, if they are tracked.
+         */
+        public Set<String> getReceivedEventIds() {
+            return receivedEventIds;
+        }
+        
+        /**
+         * Get identifiers of events written since the last call to this
+         * method, and forget them. Identifiers must be tracked.
+         */
+        public List<String> pageEventIds() {
+            final List<String> eventIds = new ArrayList<String>(pageEventIds);
+            pageEventIds.clear();
+            return eventIds;
+        }
+        
+        /**
+         * Get the continuation token received with the last page, and forget
+         * it.
+         * @return continuation token, or <code>null</code> if the last page
+         *         was received
+         */
+        public String nextPageToken() {
+            final String pageToken = nextPageToken;
+            nextPageToken = null;
+            return pageToken;
+        }
+        
+        public String getSyncCursor() {
+            return syncCursor;
+        }
+        
+        public String getNewEventId() {
+            return newEventId;
+        }
+        
+        public int getNewEventCount() {
+            return newEventCount;
+        }
+        
+        public int getEventCount() {
+            return eventCount;
+        }
+        
+        public int getDeletedEventCount() {
+            return deletedEventCount;
+        }
+    }
+    
     /**
      * Remove trailing spaces.
      */
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.sync;
+
+import static org.pixmob.droidlink.Constants.DEVELOPER_MODE;
+import static org.pixmob.droidlink.Constants.GOOGLE_ACCOUNT;
+import static org.pixmob.droidlink.Constants.SHARED_PREFERENCES_FILE;
+import static org.pixmob.droidlink.Constants.SP_KEY_ACCOUNT;
+import static org.pixmob.droidlink.Constants.SYNC_DEBOUNCE_DELAY;
+import static org.pixmob.droidlink.Constants.TAG;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.pixmob.droidlink.provider.EventsContract;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Process-wide scheduler for synchronization requests. Requests received for
+ * an account within {@link org.pixmob.droidlink.Constants#SYNC_DEBOUNCE_DELAY}
+ * are merged into a single request: a full synchronization absorbs a light
+ * synchronization, and synchronization tokens are merged. At most one
+ * synchronization is requested for an account until {@link SyncAdapter} is done
+ * with it: requests received in the meantime are merged and sent afterwards,
+ * after the same delay.
+ * @author Pixmob
+ */
+public final class SyncScheduler {
+    /**
+     * A synchronization is considered done after this delay (in milliseconds)
+     * if {@link SyncAdapter} was not run. A request sent while a
+     * synchronization is still running is queued by the system: this delay
+     * only bounds how long requests are held back.
+     */
+    private static final long IN_FLIGHT_TIMEOUT = 60 * 1000;
+    private static final SyncScheduler INSTANCE = new SyncScheduler();
+    
+    private final Map<String, PendingSync> pendingSyncs = new HashMap<String, PendingSync>();
+    private final Map<String, Long> inFlightSyncs = new HashMap<String, Long>();
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "DroidLink/Sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private int numRequests;
+    private int numSyncs;
+    
+    private SyncScheduler() {
+    }
+    
+    public static SyncScheduler getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Schedule a synchronization for the account selected by the user.
+     * @param syncType {@link EventsContract#FULL_SYNC} or
+     *            {@link EventsContract#LIGHT_SYNC}
+     * @param syncToken synchronization token sent by the server, or
+     *            <code>null</code>
+     * @see #schedule(String, int, String)
+     */
+    public void schedule(Context context, int syncType, String syncToken) {
+        final SharedPreferences prefs = context.getSharedPreferences(SHARED_PREFERENCES_FILE,
+            Context.MODE_PRIVATE);
+        final String account = prefs.getString(SP_KEY_ACCOUNT, null);
+        if (account == null) {
+            Log.w(TAG, "No account set: cannot sync");
+            return;
+        }
+        if (syncType != EventsContract.FULL_SYNC && syncType != EventsContract.LIGHT_SYNC) {
+            throw new IllegalArgumentException("Invalid sync type: " + syncType);
+        }
+        
+        schedule(account, syncType, syncToken);
+    }
+    
+    /**
+     * Schedule a synchronization for an account. This method never blocks:
+     * the synchronization is requested later, from a background thread.
+     * @param syncType {@link EventsContract#FULL_SYNC} or
+     *            {@link EventsContract#LIGHT_SYNC}
+     * @param syncToken synchronization token sent by the server, or
+     *            <code>null</code>
+     */
+    public synchronized void schedule(String account, int syncType, String syncToken) {
+        ++numRequests;
+        
+        PendingSync pendingSync = pendingSyncs.get(account);
+        if (pendingSync == null) {
+            pendingSync = new PendingSync();
+            pendingSyncs.put(account, pendingSync);
+            scheduleRequest(account, SYNC_DEBOUNCE_DELAY);
+        }
+        pendingSync.merge(syncType, syncToken);
+    }
+    
+    /**
+     * Notify that a synchronization is done for an account. Requests received
+     * while this synchronization was running are sent after a delay, so that
+     * requests received right after this synchronization are merged with
+     * them.
+     */
+    public synchronized void onSyncFinished(String account) {
+        inFlightSyncs.remove(account);
+        if (pendingSyncs.containsKey(account)) {
+            scheduleRequest(account, SYNC_DEBOUNCE_DELAY);
+        }
+    }
+    
+    /**
+     * Get the number of synchronization requests received.
+     */
+    public synchronized int getRequestCount() {
+        return numRequests;
+    }
+    
+    /**
+     * Get the number of synchronizations actually requested, after requests
+     * were merged.
+     */
+    public synchronized int getSyncCount() {
+        return numSyncs;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "requests=" + numRequests + ", syncs=" + numSyncs;
+    }
+    
+    private void scheduleRequest(final String account, long delay) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                requestSync(account);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private void requestSync(String account) {
+        final PendingSync pendingSync;
+        synchronized (this) {
+            if (!pendingSyncs.containsKey(account)) {
+                // This request was already sent.
+                return;
+            }
+            
+            final long now = System.currentTimeMillis();
+            final Long syncStart = inFlightSyncs.get(account);
+            if (syncStart != null && now - syncStart < IN_FLIGHT_TIMEOUT) {
+                // Wait for the running synchronization: this request is sent
+                // when it is done, or when it times out.
+                scheduleRequest(account, syncStart + IN_FLIGHT_TIMEOUT - now);
+                return;
+            }
+            
+            pendingSync = pendingSyncs.remove(account);
+            inFlightSyncs.put(account, now);
+        }
+        
+        try {
+            final Account syncAccount = new Account(account, GOOGLE_ACCOUNT);
+            if (ContentResolver.getIsSyncable(syncAccount, EventsContract.AUTHORITY) == 0) {
+                // SyncAdapter will not run for this account: do not wait for
+                // it. A new account is not initialized yet, and its first
+                // synchronization is still requested.
+                Log.w(TAG, "Synchronization is disabled for " + account + ": cannot sync");
+                synchronized (this) {
+                    inFlightSyncs.remove(account);
+                }
+                return;
+            }
+            ContentResolver.requestSync(syncAccount, EventsContract.AUTHORITY, pendingSync
+                    .toExtras());
+            synchronized (this) {
+                ++numSyncs;
+            }
+            if (DEVELOPER_MODE) {
+                Log.d(TAG, "Sync requested for " + account + ": " + this);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to sync events", e);
+            synchronized (this) {
+                inFlightSyncs.remove(account);
+            }
+        }
+    }
+    
+    /**
+     * Synchronization request merged from several requests.
+     * @author Pixmob
+     */
+    private static class PendingSync {
+        public final Set<String> syncTokens = new LinkedHashSet<String>();
+        public int syncType = EventsContract.LIGHT_SYNC;
+        /**
+         * Strategy of the requests without a token, or <code>0</code> if
+         * every request has a token.
+         */
+        public int untokenedSyncType;
+        
+        public void merge(int syncType, String syncToken) {
+            if (syncType == EventsContract.FULL_SYNC) {
+                this.syncType = EventsContract.FULL_SYNC;
+            }
+            if (syncToken == null) {
+                if (untokenedSyncType != EventsContract.FULL_SYNC) {
+                    untokenedSyncType = syncType;
+                }
+            } else {
+                syncTokens.add(syncToken);
+            }
+        }
+        
+        public Bundle toExtras() {
+            final Bundle extras = new Bundle();
+            extras.putInt(EventsContract.SYNC_STRATEGY, syncType);
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            
+            // A full request without a token must not be skipped, and it
+            // covers every other request: tokens are not needed. A light
+            // request without a token is run instead of the requests with a
+            // token, if these tokens were already consumed.
+            if (untokenedSyncType != EventsContract.FULL_SYNC && !syncTokens.isEmpty()) {
+                if (untokenedSyncType != 0) {
+                    extras.putInt(EventsContract.UNTOKENED_SYNC_STRATEGY, untokenedSyncType);
+                }
+                final StringBuilder buf = new StringBuilder(syncTokens.size() * 37);
+                for (final String syncToken : syncTokens) {
+                    if (buf.length() != 0) {
+                        buf.append(EventsContract.SYNC_TOKEN_SEPARATOR);
+                    }
+                    buf.append(syncToken);
+                }
+                extras.putString(EventsContract.SYNC_TOKEN, buf.toString());
+            }
+            return extras;
+        }
+    }
+}
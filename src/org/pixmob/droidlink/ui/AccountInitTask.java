@@ -32,6 +32,8 @@ import org.pixmob.droidlink.feature.Features;
 import org.pixmob.droidlink.feature.SharedPreferencesSaverFeature;
 import org.pixmob.droidlink.net.NetworkClient;
 import org.pixmob.droidlink.provider.EventsContract;
+import org.pixmob.droidlink.sync.SyncAdapter;
+import org.pixmob.droidlink.sync.SyncScheduler;
 import org.pixmob.droidlink.util.Accounts;
 import org.pixmob.droidlink.util.DeviceUtils;
 
@@ -121,6 +123,7 @@ class AccountInitTask extends AsyncTask<String, Void, Integer> {
             if (newUserSet) {
                 // The user is different: clear events.
                 contentResolver.delete(EventsContract.CONTENT_URI, null, null);
+                SyncAdapter.resetSyncState(fragment.getActivity());
             }
             
             prefsEditor.putString(SP_KEY_ACCOUNT, newAccount);
@@ -141,7 +144,8 @@ class AccountInitTask extends AsyncTask<String, Void, Integer> {
         
         if (AUTH_OK == authResult) {
             // Start synchronization.
-            EventsContract.sync(getFragment().getActivity(), EventsContract.FULL_SYNC, null);
+            SyncScheduler.getInstance().schedule(getFragment().getActivity(),
+                EventsContract.FULL_SYNC, null);
         }
         
         return authResult;
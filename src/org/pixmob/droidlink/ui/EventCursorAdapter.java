@@ -114,7 +114,8 @@ class EventCursorAdapter extends SimpleCursorAdapter {
         if (state == EventsContract.PENDING_DELETE_STATE) {
             iv.setImageResource(R.drawable.pending_delete);
             iv.setVisibility(View.VISIBLE);
-        } else if (state == EventsContract.PENDING_UPLOAD_STATE) {
+        } else if (state == EventsContract.PENDING_UPLOAD_STATE
+                || state == EventsContract.FAILED_STATE) {
             iv.setImageResource(R.drawable.pending_upload);
             iv.setVisibility(View.VISIBLE);
         } else {
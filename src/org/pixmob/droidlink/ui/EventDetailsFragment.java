@@ -32,6 +32,7 @@ import java.util.Map;
 
 import org.pixmob.appengine.client.R;
 import org.pixmob.droidlink.provider.EventsContract;
+import org.pixmob.droidlink.sync.SyncScheduler;
 import org.pixmob.droidlink.util.Cache;
 
 import android.app.AlertDialog;
@@ -180,7 +181,8 @@ public class EventDetailsFragment extends Fragment {
                 cv.put(EventsContract.Event.STATE, EventsContract.PENDING_DELETE_STATE);
                 getActivity().getContentResolver().update(eventUri, cv, null, null);
                 
-                EventsContract.sync(getActivity(), EventsContract.LIGHT_SYNC, null);
+                SyncScheduler.getInstance().schedule(getActivity(), EventsContract.LIGHT_SYNC,
+                    null);
             }
         };
         deleteEventTask.start();
@@ -34,6 +34,7 @@ import org.pixmob.appengine.client.R;
 import org.pixmob.droidlink.feature.Features;
 import org.pixmob.droidlink.feature.SharedPreferencesSaverFeature;
 import org.pixmob.droidlink.provider.EventsContract;
+import org.pixmob.droidlink.sync.SyncScheduler;
 import org.pixmob.droidlink.util.Accounts;
 
 import android.accounts.Account;
@@ -161,7 +162,7 @@ public class EventsFragment extends ListFragment implements LoaderCallbacks<Curs
      * Start event synchronization.
      */
     private void onRefresh() {
-        EventsContract.sync(getActivity(), EventsContract.FULL_SYNC, null);
+        SyncScheduler.getInstance().schedule(getActivity(), EventsContract.FULL_SYNC, null);
     }
     
     @Override
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.provider;
+
+import static org.pixmob.droidlink.Constants.TAG;
+import static org.pixmob.droidlink.provider.EventsContract.Event.DEVICE_ID;
+import static org.pixmob.droidlink.provider.EventsContract.Event.MESSAGE;
+import static org.pixmob.droidlink.provider.EventsContract.Event.STATE;
+import static org.pixmob.droidlink.provider.EventsContract.Event.TYPE;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.OPERATION;
+import static org.pixmob.droidlink.provider.EventsContract.Outbox.SEQUENCE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+/**
+ * Tests for {@link EventsContentProvider}.
+ * @author Pixmob
+ */
+public class EventsContentProviderTest extends ProviderTestCase2<EventsContentProvider> {
+    private static final String DEVICE = "device";
+    
+    public EventsContentProviderTest() {
+        super(EventsContentProvider.class, EventsContract.AUTHORITY);
+    }
+    
+    /**
+     * Single event writes must not wait for a batch which waits for them: the
+     * statement cache is shared by every thread.
+     */
+    public void testInsertDuringApplyBatch() throws Exception {
+        final EventsContentProvider provider = getProvider();
+        final List<String> eventIds = new ArrayList<String>();
+        for (int i = 0; i < 100; ++i) {
+            eventIds.add(insertEvent(provider, "batch " + i));
+        }
+        
+        final Throwable[] batchError = new Throwable[1];
+        final Thread batchThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int round = 0; round < 20; ++round) {
+                        // Change every event state back and forth, so that
+                        // each batch writes to the database.
+                        final int state = round % 2 == 0 ? EventsContract.UPLOADED_STATE
+                                : EventsContract.PENDING_UPLOAD_STATE;
+                        final ArrayList<ContentProviderOperation> batch =
+                                new ArrayList<ContentProviderOperation>(eventIds.size());
+                        for (final String eventId : eventIds) {
+                            batch.add(ContentProviderOperation.newUpdate(
+                                Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId))
+                                    .withValue(STATE, state).withExpectedCount(1).build());
+                        }
+                        provider.applyBatch(batch);
+                    }
+                } catch (Throwable e) {
+                    batchError[0] = e;
+                }
+            }
+        };
+        batchThread.start();
+        
+        int numInserts = 0;
+        while (batchThread.isAlive() && numInserts < 500) {
+            insertEvent(provider, "insert " + numInserts);
+            ++numInserts;
+        }
+        batchThread.join(60 * 1000);
+        
+        assertFalse("Batch is blocked", batchThread.isAlive());
+        if (batchError[0] != null) {
+            throw new AssertionError(batchError[0]);
+        }
+        assertEquals(eventIds.size() + numInserts, countEvents(provider, null));
+        assertEquals(eventIds.size(), countEvents(provider, MESSAGE + " LIKE 'batch %' AND "
+                + STATE + "=" + EventsContract.PENDING_UPLOAD_STATE));
+    }
+    
+    /**
+     * Queries outside a transaction are run on a reader connection when
+     * write-ahead logging is enabled: the event list is not blocked while a
+     * synchronization applies a large batch.
+     */
+    public void testQueryDuringApplyBatch() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // Write-ahead logging is not supported.
+            return;
+        }
+        
+        final EventsContentProvider provider = getProvider();
+        for (int i = 0; i < 10; ++i) {
+            insertEvent(provider, "event " + i);
+        }
+        
+        final PausedBatch batch = new PausedBatch(10000);
+        final ContentValues values = new ContentValues(3);
+        values.put(DEVICE_ID, DEVICE);
+        values.put(TYPE, EventsContract.RECEIVED_SMS_TYPE);
+        values.put(MESSAGE, "batch");
+        for (int i = 0; i < 10000; ++i) {
+            batch.add(ContentProviderOperation.newInsert(EventsContract.CONTENT_URI).withValues(
+                values).build());
+        }
+        
+        final Throwable[] batchError = new Throwable[1];
+        final Thread batchThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    provider.applyBatch(batch);
+                } catch (Throwable e) {
+                    batchError[0] = e;
+                }
+            }
+        };
+        batchThread.start();
+        
+        // Query the events while the batch transaction is open.
+        assertTrue("Batch not started", batch.paused.await(60, TimeUnit.SECONDS));
+        final long queryStart = SystemClock.uptimeMillis();
+        final int numEvents = countEvents(provider, null);
+        final long queryTime = SystemClock.uptimeMillis() - queryStart;
+        batch.resume.countDown();
+        Log.i(TAG, "Event query during applyBatch: " + queryTime + " ms");
+        
+        batchThread.join(60 * 1000);
+        assertFalse("Batch is blocked", batchThread.isAlive());
+        if (batchError[0] != null) {
+            throw new AssertionError(batchError[0]);
+        }
+        assertFalse("Query waited for the batch", batch.timedOut);
+        assertEquals(10, numEvents);
+        assertEquals(10 + batch.size(), countEvents(provider, null));
+    }
+    
+    /**
+     * Outbox pages are read after the last operation of the previous page: no
+     * operation is skipped when the previous operations are removed, and new
+     * operations are read at the end.
+     */
+    public void testOutboxPages() {
+        final EventsContentProvider provider = getProvider();
+        final List<String> eventIds = new ArrayList<String>();
+        for (int i = 0; i < 7; ++i) {
+            eventIds.add(insertEvent(provider, "event " + i));
+        }
+        
+        final List<String> readEventIds = new ArrayList<String>();
+        long lastSequence = 0;
+        boolean eventInserted = false;
+        for (;;) {
+            final List<String> pageEventIds = new ArrayList<String>(2);
+            final Cursor c = provider.query(EventsContract.getOutboxUri(2), new String[] {
+                    EventsContract.Event._ID, SEQUENCE }, OPERATION + "=? AND " + SEQUENCE
+                    + ">?", new String[] { String.valueOf(EventsContract.UPLOAD_OPERATION),
+                    String.valueOf(lastSequence) }, null);
+            try {
+                while (c.moveToNext()) {
+                    pageEventIds.add(c.getString(0));
+                    lastSequence = c.getLong(1);
+                }
+            } finally {
+                c.close();
+            }
+            if (pageEventIds.isEmpty()) {
+                break;
+            }
+            readEventIds.addAll(pageEventIds);
+            
+            // Remove the operations which were read, as an upload does.
+            final ContentValues values = new ContentValues(1);
+            values.put(STATE, EventsContract.UPLOADED_STATE);
+            for (final String eventId : pageEventIds) {
+                assertEquals(1, provider.update(
+                    Uri.withAppendedPath(EventsContract.CONTENT_URI, eventId), values, null,
+                    null));
+            }
+            if (!eventInserted) {
+                eventIds.add(insertEvent(provider, "new event"));
+                eventInserted = true;
+            }
+        }
+        
+        assertEquals(eventIds, readEventIds);
+    }
+    
+    /**
+     * Batch which pauses in the middle of its transaction, until the batch
+     * is resumed or a timeout occurs. Operations are read when they are
+     * applied.
+     */
+    private static class PausedBatch extends ArrayList<ContentProviderOperation> {
+        private static final long serialVersionUID = 1L;
+        final CountDownLatch paused = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        volatile boolean timedOut;
+        
+        public PausedBatch(int capacity) {
+            super(capacity);
+        }
+        
+        @Override
+        public ContentProviderOperation get(int index) {
+            if (index == size() / 2 && paused.getCount() != 0) {
+                paused.countDown();
+                try {
+                    timedOut = !resume.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.get(index);
+        }
+    }
+    
+    private static String insertEvent(EventsContentProvider provider, String message) {
+        final ContentValues values = new ContentValues(3);
+        values.put(DEVICE_ID, DEVICE);
+        values.put(TYPE, EventsContract.RECEIVED_SMS_TYPE);
+        values.put(MESSAGE, message);
+        return provider.insert(EventsContract.CONTENT_URI, values).getLastPathSegment();
+    }
+    
+    private static int countEvents(EventsContentProvider provider, String selection) {
+        final Cursor c = provider.query(EventsContract.CONTENT_URI,
+            new String[] { EventsContract.Event._ID }, selection, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
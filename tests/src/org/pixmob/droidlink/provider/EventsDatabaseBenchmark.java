@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.provider;
+
+import static org.pixmob.droidlink.Constants.TAG;
+
+import java.util.UUID;
+
+import org.pixmob.droidlink.provider.EventsContentProvider.EventsDatabaseHelper;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measurements on the events database. Results are logged: run these tests
+ * on a device in order to compare implementations.
+ * @author Pixmob
+ */
+public class EventsDatabaseBenchmark extends AndroidTestCase {
+    private static final String DATABASE_NAME = "events_benchmark.db";
+    private static final int LARGE_EVENT_COUNT = 100000;
+    private static final int IDENTIFIER_COUNT = 20000;
+    private EventsDatabaseHelper helper;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        helper = new EventsDatabaseHelper(getContext(), DATABASE_NAME, null,
+                EventsContentProvider.DATABASE_VERSION);
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        helper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+    
+    /**
+     * Compare inserts with a cached statement to inserts with
+     * {@link SQLiteDatabase#insert(String, String, ContentValues)}, which
+     * compiles a statement for each row.
+     */
+    @LargeTest
+    public void testStatementCacheInsert() {
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final int count = 2000;
+        final long start = count(db);
+        
+        long time = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; ++i) {
+                final ContentValues values = new ContentValues(6);
+                values.put(EventIds.UUID_COLUMN, EventIds.toBytes(UUID.randomUUID()));
+                values.put(EventsContract.Event.DEVICE_ID, "device");
+                values.put(EventsContract.Event.CREATED, i);
+                values.put(EventsContract.Event.TYPE, EventsContract.RECEIVED_SMS_TYPE);
+                values.put(EventsContract.Event.MESSAGE, "event " + i);
+                values.put(EventsContract.Event.STATE, EventsContract.PENDING_UPLOAD_STATE);
+                assertTrue(db.insert("events", null, values) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        logThroughput("SQLiteDatabase.insert", count, System.nanoTime() - time);
+        
+        final StatementCache cache = new StatementCache();
+        final String sql = "INSERT INTO events (created, deviceid, message, state, type, uuid)"
+                + " VALUES (?,?,?,?,?,?)";
+        time = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; ++i) {
+                assertTrue(cache.executeInsert(db, sql, new Object[] { i, "device", "event " + i,
+                        EventsContract.PENDING_UPLOAD_STATE, EventsContract.RECEIVED_SMS_TYPE,
+                        EventIds.toBytes(UUID.randomUUID()) }) != -1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            cache.close();
+        }
+        logThroughput("StatementCache.executeInsert", count, System.nanoTime() - time);
+        
+        assertEquals(start + 2 * count, count(db));
+    }
+    
+    /**
+     * Check that frequent queries use an index on a large database: the
+     * outbox lookup by state and device, the purge of old events, and the
+     * first page of the event list.
+     */
+    @LargeTest
+    public void testIndexedQueries() {
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        fillEvents(db, LARGE_EVENT_COUNT);
+        
+        final String[] queries = {
+                "SELECT row_id FROM events WHERE state=" + EventsContract.PENDING_UPLOAD_STATE
+                        + " AND deviceid='device0'",
+                "SELECT row_id FROM events WHERE created<=" + LARGE_EVENT_COUNT / 10,
+                "SELECT * FROM events ORDER BY " + EventsContract.Event.DEFAULT_SORT_ORDER
+                        + " LIMIT 50", };
+        for (final String query : queries) {
+            final String plan = explainQueryPlan(db, query);
+            assertTrue(plan, plan.contains("INDEX"));
+            assertFalse(plan, plan.contains("TEMP B-TREE"));
+            
+            final long time = System.nanoTime();
+            final int numRows = readAll(db, query);
+            Log.i(TAG, query + ": " + numRows + " row(s) in " + (System.nanoTime() - time) / 1000
+                    + " us (" + plan + ")");
+        }
+    }
+    
+    /**
+     * Compare a full-text search to a <code>LIKE</code> selection, which
+     * reads every event. The search query is the query sent by the provider
+     * for the search Uri.
+     */
+    @LargeTest
+    public void testSearch() {
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        fillEvents(db, LARGE_EVENT_COUNT);
+        
+        long time = System.nanoTime();
+        final int numMatches = readAll(db, "SELECT row_id FROM events WHERE row_id IN"
+                + " (SELECT docid FROM events_fts WHERE events_fts MATCH 'word42*') ORDER BY "
+                + EventsContract.Event.DEFAULT_SORT_ORDER);
+        Log.i(TAG, "Full-text search: " + numMatches + " event(s) in "
+                + (System.nanoTime() - time) / 1000 + " us");
+        
+        time = System.nanoTime();
+        final int numLikeMatches = readAll(db, "SELECT row_id FROM events WHERE message"
+                + " LIKE '%word42%' ORDER BY " + EventsContract.Event.DEFAULT_SORT_ORDER);
+        Log.i(TAG, "LIKE search: " + numLikeMatches + " event(s) in "
+                + (System.nanoTime() - time) / 1000 + " us");
+        
+        assertEquals(LARGE_EVENT_COUNT / 100, numMatches);
+        assertEquals(numLikeMatches, numMatches);
+    }
+    
+    /**
+     * Compare identifiers stored as text primary keys, as in version 3, to
+     * identifiers stored as blobs with an integer primary key. Random
+     * identifiers are used in both tables.
+     */
+    @LargeTest
+    public void testIdentifierStorage() {
+        final long textSize = measureIdentifiers("Text identifiers", false, false);
+        final long blobSize = measureIdentifiers("Blob identifiers", true, false);
+        assertTrue(blobSize < textSize);
+    }
+    
+    /**
+     * Compare random identifiers to time-ordered identifiers, which are
+     * appended at the end of the identifier index. Time-ordered identifiers
+     * must sort like their creation time, so that keyset pagination on the
+     * identifier follows the creation order.
+     */
+    @LargeTest
+    public void testTimeOrderedIdentifiers() {
+        measureIdentifiers("Random identifiers", true, false);
+        measureIdentifiers("Time-ordered identifiers", true, true);
+        
+        // Several identifiers are created in the same millisecond.
+        byte[] previous = null;
+        for (int i = 0; i < IDENTIFIER_COUNT; ++i) {
+            final byte[] eventId = EventIds.toBytes(EventIds.newEventId(i / 4));
+            if (previous != null) {
+                assertTrue("Identifier " + i + " is not ordered", compare(previous, eventId) < 0);
+            }
+            previous = eventId;
+        }
+    }
+    
+    /**
+     * Compare blobs as SQLite does: bytes are unsigned.
+     */
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length && i < b.length; ++i) {
+            final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+    
+    /**
+     * Insert identifiers in an in-memory database, with a single transaction.
+     * The throughput and the database size are logged.
+     * @param binary <code>true</code> to store identifiers as blobs with an
+     *            integer primary key, <code>false</code> to store them as a
+     *            text primary key
+     * @param timeOrdered <code>true</code> to generate time-ordered
+     *            identifiers, <code>false</code> for random identifiers
+     * @return the database size, in bytes
+     */
+    private static long measureIdentifiers(String name, boolean binary, boolean timeOrdered) {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            db.execSQL(binary ? "CREATE TABLE events (row_id INTEGER PRIMARY KEY,"
+                    + " uuid BLOB NOT NULL UNIQUE, created LONG, message TEXT);"
+                    : "CREATE TABLE events (_id TEXT PRIMARY KEY, created LONG, message TEXT);");
+            final SQLiteStatement insert = db.compileStatement("INSERT INTO events ("
+                    + (binary ? "uuid" : "_id") + ", created, message) VALUES (?,?,?)");
+            final long time = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < IDENTIFIER_COUNT; ++i) {
+                    final UUID eventId = timeOrdered ? EventIds.newEventId(i) : UUID.randomUUID();
+                    if (binary) {
+                        insert.bindBlob(1, EventIds.toBytes(eventId));
+                    } else {
+                        insert.bindString(1, eventId.toString());
+                    }
+                    insert.bindLong(2, i);
+                    insert.bindString(3, "event " + i);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+            logThroughput(name + " insert", IDENTIFIER_COUNT, System.nanoTime() - time);
+            
+            final long size = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                    * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+            Log.i(TAG, name + " size: " + size / 1024 + " KB for " + IDENTIFIER_COUNT
+                    + " events");
+            return size;
+        } finally {
+            db.close();
+        }
+    }
+    
+    /**
+     * Insert events in a single transaction. One event in a hundred is
+     * waiting for upload, the other events are uploaded.
+     */
+    private static void fillEvents(SQLiteDatabase db, int count) {
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO events (uuid, deviceid,"
+                + " created, type, number, name, message, state) VALUES (?,?,?,?,?,?,?,?)");
+        final long time = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; ++i) {
+                insert.bindBlob(1, EventIds.toBytes(EventIds.newEventId(i)));
+                insert.bindString(2, "device" + i % 4);
+                insert.bindLong(3, i);
+                insert.bindLong(4, EventsContract.RECEIVED_SMS_TYPE);
+                insert.bindString(5, "555-" + i % 10000);
+                insert.bindString(6, "Contact " + i % 500);
+                insert.bindString(7, "event " + i + " word" + i % 100);
+                insert.bindLong(8, i % 100 == 0 ? EventsContract.PENDING_UPLOAD_STATE
+                        : EventsContract.UPLOADED_STATE);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        logThroughput("Fill database", count, System.nanoTime() - time);
+    }
+    
+    private static String explainQueryPlan(SQLiteDatabase db, String query) {
+        final StringBuilder plan = new StringBuilder();
+        final Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        try {
+            final int detailIdx = c.getColumnCount() - 1;
+            while (c.moveToNext()) {
+                plan.append(plan.length() == 0 ? "" : "; ").append(c.getString(detailIdx));
+            }
+        } finally {
+            c.close();
+        }
+        return plan.toString();
+    }
+    
+    private static int readAll(SQLiteDatabase db, String query) {
+        final Cursor c = db.rawQuery(query, null);
+        try {
+            int numRows = 0;
+            while (c.moveToNext()) {
+                ++numRows;
+            }
+            return numRows;
+        } finally {
+            c.close();
+        }
+    }
+    
+    private static long count(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM events", null);
+    }
+    
+    private static void logThroughput(String name, int count, long nanos) {
+        Log.i(TAG, name + ": " + count + " operations in " + nanos / 1000000 + " ms ("
+                + count * 1000000000L / Math.max(nanos, 1) + " ops/s)");
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.provider;
+
+import java.util.UUID;
+
+import org.pixmob.droidlink.provider.EventsContentProvider.EventsDatabaseHelper;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests for the database migrations of {@link EventsContentProvider}.
+ * @author Pixmob
+ */
+public class EventsDatabaseMigrationTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "events_migration_test.db";
+    private static final String OUTBOX_QUERY = "SELECT outbox.op, outbox.available, events.message"
+            + " FROM outbox JOIN events ON (events.uuid=outbox.eventuuid) ORDER BY outbox.seq";
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+    
+    public void testUpgradeFromVersion7() {
+        createVersion7Database();
+        
+        final EventsDatabaseHelper helper = new EventsDatabaseHelper(getContext(), DATABASE_NAME,
+            null, 8);
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(8, db.getVersion());
+            
+            // Pending operations are queued in creation order, and uploads
+            // wait for their next attempt.
+            assertOutbox(db, new Object[][] {
+                    { EventsContract.DELETE_OPERATION, 0L, "pending delete" },
+                    { EventsContract.UPLOAD_OPERATION, 5000L, "pending upload" }, });
+            
+            // Events are still indexed.
+            assertEquals(1, countMatches(db, "failed"));
+            assertEquals(4, countMatches(db, "event"));
+            
+            // Triggers keep the migrated outbox up to date.
+            db.execSQL("UPDATE events SET state=" + EventsContract.UPLOADED_STATE
+                    + " WHERE message='pending upload'");
+            insertEvent(db, 4000, EventsContract.PENDING_UPLOAD_STATE, 0, "new event");
+            assertOutbox(db, new Object[][] {
+                    { EventsContract.DELETE_OPERATION, 0L, "pending delete" },
+                    { EventsContract.UPLOAD_OPERATION, 0L, "new event" }, });
+            assertEquals(1, countMatches(db, "new"));
+        } finally {
+            helper.close();
+        }
+    }
+    
+    public void testUpgradeFromVersion7ToLatest() {
+        createVersion7Database();
+        
+        final EventsDatabaseHelper helper = new EventsDatabaseHelper(getContext(), DATABASE_NAME,
+            null, 9);
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(9, db.getVersion());
+            assertEquals(4, count(db, "SELECT row_id FROM events WHERE uploaded=0"));
+            assertEquals(2, count(db, OUTBOX_QUERY));
+        } finally {
+            helper.close();
+        }
+    }
+    
+    /**
+     * Create a database with the schema of version 7, by upgrading a version
+     * 2 database (the oldest version which is migrated) with the provider
+     * migrations.
+     */
+    private void createVersion7Database() {
+        final SQLiteDatabase v2 = getContext().openOrCreateDatabase(DATABASE_NAME, 0, null);
+        try {
+            v2.execSQL("CREATE TABLE events (_id TEXT PRIMARY KEY, deviceid TEXT, created LONG,"
+                    + " type INT, number TEXT, name TEXT, message TEXT, state INT);");
+            v2.setVersion(2);
+        } finally {
+            v2.close();
+        }
+        
+        final EventsDatabaseHelper helper = new EventsDatabaseHelper(getContext(), DATABASE_NAME,
+            null, 7);
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(7, db.getVersion());
+            insertEvent(db, 2000, EventsContract.PENDING_UPLOAD_STATE, 5000, "pending upload");
+            insertEvent(db, 1000, EventsContract.PENDING_DELETE_STATE, 0, "pending delete");
+            insertEvent(db, 3000, EventsContract.UPLOADED_STATE, 0, "uploaded");
+            insertEvent(db, 500, EventsContract.FAILED_STATE, 0, "failed");
+        } finally {
+            helper.close();
+        }
+    }
+    
+    private static void insertEvent(SQLiteDatabase db, long created, int state, long nextAttempt,
+            String message) {
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO events"
+                + " (uuid, deviceid, created, type, number, message, state, nextattempt)"
+                + " VALUES (?,?,?,?,?,?,?,?)");
+        try {
+            insert.bindBlob(1, EventIds.toBytes(UUID.randomUUID()));
+            insert.bindString(2, "device");
+            insert.bindLong(3, created);
+            insert.bindLong(4, EventsContract.RECEIVED_SMS_TYPE);
+            insert.bindString(5, "555-0100");
+            insert.bindString(6, message + " event");
+            insert.bindLong(7, state);
+            insert.bindLong(8, nextAttempt);
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+    
+    private static void assertOutbox(SQLiteDatabase db, Object[][] expected) {
+        final Cursor c = db.rawQuery(OUTBOX_QUERY, null);
+        try {
+            assertEquals(expected.length, c.getCount());
+            for (final Object[] row : expected) {
+                assertTrue(c.moveToNext());
+                assertEquals(row[0], c.getInt(0));
+                assertEquals(row[1], c.getLong(1));
+                assertEquals(row[2] + " event", c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+    }
+    
+    private static int countMatches(SQLiteDatabase db, String terms) {
+        return count(db, "SELECT docid FROM events_fts WHERE events_fts MATCH '" + terms + "'");
+    }
+    
+    private static int count(SQLiteDatabase db, String query) {
+        final Cursor c = db.rawQuery(query, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}